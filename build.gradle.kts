@@ -16,6 +16,7 @@ repositories {
 dependencies {
     // !!! Do not forget to change QOIPluginConstants.QOI_VERSION when upgrade qoi-java !!!
     implementation("me.saharnooby:qoi-java:1.2.1")
+    testImplementation("junit:junit:4.13.2")
     intellijPlatform {
         create("IU", "2025.2")
     }
@@ -39,6 +40,17 @@ tasks {
         enabled = false
     }
 
+    test {
+        // The parallel decode and encode paths only run with more than one pool thread
+        systemProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4")
+    }
+
+    register<JavaExec>("benchmark") {
+        description = "Times QOIDecoder against the qoi-java read path."
+        classpath = sourceSets["test"].runtimeClasspath
+        mainClass.set("io.github.xiaozhuai.jetbrains.qoi.QOIDecoderBenchmark")
+    }
+
     signPlugin {
         certificateChain.set(System.getenv("INTELLIJ_CERTIFICATE_CHAIN"))
         privateKey.set(System.getenv("INTELLIJ_PRIVATE_KEY"))
@@ -0,0 +1,47 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wraps a {@link WritableByteChannel} into an {@link OutputStream}. Every write becomes
+ * a channel write of the whole array, so callers should write in large chunks.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+
+    // Whether closing this stream closes the channel
+    private final boolean owned;
+
+    public ChannelOutputStream(@NotNull WritableByteChannel channel, boolean owned) {
+        this.channel = channel;
+        this.owned = owned;
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.owned) {
+            this.channel.close();
+        }
+    }
+
+}
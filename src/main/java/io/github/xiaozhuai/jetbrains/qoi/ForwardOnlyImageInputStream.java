@@ -0,0 +1,79 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps an {@link InputStream} into an {@link javax.imageio.stream.ImageInputStream}
+ * without any caching. Seeking only works forwards, by skipping bytes.
+ * <p>
+ * The wrapped stream is not closed, it belongs to the caller.
+ */
+final class ForwardOnlyImageInputStream extends ImageInputStreamImpl {
+
+    private final InputStream input;
+
+    public ForwardOnlyImageInputStream(@NotNull InputStream input) {
+        this.input = input;
+    }
+
+    @Override
+    public int read() throws IOException {
+        this.bitOffset = 0;
+
+        int b = this.input.read();
+
+        if (b >= 0) {
+            this.streamPos++;
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte @NotNull [] b, int off, int len) throws IOException {
+        this.bitOffset = 0;
+
+        int n = this.input.read(b, off, len);
+
+        if (n > 0) {
+            this.streamPos += n;
+        }
+
+        return n;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < this.streamPos) {
+            throw new IOException("Cannot seek backwards in a forward-only stream");
+        }
+
+        this.bitOffset = 0;
+
+        while (this.streamPos < pos) {
+            long n = this.input.skip(pos - this.streamPos);
+
+            if (n <= 0) {
+                // skip() may stop early without being at the end
+                if (this.input.read() < 0) {
+                    throw new EOFException();
+                }
+
+                n = 1;
+            }
+
+            this.streamPos += n;
+        }
+    }
+
+    @Override
+    public boolean isCached() {
+        return false;
+    }
+
+}
@@ -11,7 +11,14 @@ final class ImageParamUtil {
     private static final Point ZERO = new Point(0, 0);
 
     static boolean isDefault(@NotNull ImageReadParam param) {
-        return param.getClass() == ImageReadParam.class &&
+        return isDefaultExceptDestination(param) && param.getDestination() == null;
+    }
+
+    /**
+     * @return whether the destination is the only setting of {@code param}, if any
+     */
+    static boolean isDefaultExceptDestination(@NotNull ImageReadParam param) {
+        return (param.getClass() == ImageReadParam.class || param.getClass() == QOIImageReadParam.class) &&
                 param.getSourceRegion() == null &&
                 param.getSourceXSubsampling() == 1 &&
                 param.getSourceYSubsampling() == 1 &&
@@ -20,20 +27,25 @@ final class ImageParamUtil {
                 param.getSourceBands() == null &&
                 param.getDestinationType() == null &&
                 param.getDestinationOffset().equals(ZERO) &&
-                param.getDestination() == null &&
                 param.getDestinationBands() == null;
     }
 
     static boolean isDefault(@NotNull ImageWriteParam param) {
-        return param.getClass() == ImageWriteParam.class &&
+        return isDefaultExceptDestinationOffset(param) && param.getDestinationOffset().equals(ZERO);
+    }
+
+    /**
+     * @return whether the destination offset is the only setting of {@code param}, if any
+     */
+    static boolean isDefaultExceptDestinationOffset(@NotNull ImageWriteParam param) {
+        return (param.getClass() == ImageWriteParam.class || param.getClass() == QOIImageWriteParam.class) &&
                 param.getSourceRegion() == null &&
                 param.getSourceXSubsampling() == 1 &&
                 param.getSourceYSubsampling() == 1 &&
                 param.getSubsamplingXOffset() == 0 &&
                 param.getSubsamplingYOffset() == 0 &&
                 param.getSourceBands() == null &&
-                param.getDestinationType() == null &&
-                param.getDestinationOffset().equals(ZERO);
+                param.getDestinationType() == null;
     }
 
 }
@@ -0,0 +1,132 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Reduces an image by an integer factor while its rows stream through, averaging blocks of
+ * {@code factor x factor} pixels. Only the sums of one output row are held at a time.
+ * <p>
+ * Colors are weighted by alpha, so fully transparent pixels do not bleed into the average.
+ */
+final class QOIBoxFilter {
+
+    private final int width;
+    private final int channels;
+    private final int factor;
+    private final int outputWidth;
+
+    // Per output column: red, green, blue (alpha weighted with 4 channels) and alpha sums
+    private final long[] sums;
+
+    // Source rows added since the last output row
+    private int rows;
+
+    QOIBoxFilter(int width, int channels, int factor) {
+        this.width = width;
+        this.channels = channels;
+        this.factor = factor;
+        this.outputWidth = getReducedSize(width, factor);
+        this.sums = new long[this.outputWidth * 4];
+    }
+
+    static int getReducedSize(int size, int factor) {
+        return (int) (((long) size + factor - 1) / factor);
+    }
+
+    int getOutputWidth() {
+        return this.outputWidth;
+    }
+
+    /**
+     * Adds a source row of interleaved RGB(A) bytes, starting at {@code offset}.
+     */
+    void addRow(byte @NotNull [] row, int offset) {
+        long[] sums = this.sums;
+        int channels = this.channels;
+
+        for (int x = 0, i = offset, s = 0; x < this.width; s += 4) {
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            long a = 0;
+
+            for (int stop = Math.min(x + this.factor, this.width); x < stop; x++, i += channels) {
+                if (channels == 4) {
+                    int alpha = row[i + 3] & 0xff;
+
+                    r += (row[i] & 0xff) * alpha;
+                    g += (row[i + 1] & 0xff) * alpha;
+                    b += (row[i + 2] & 0xff) * alpha;
+                    a += alpha;
+                } else {
+                    r += row[i] & 0xff;
+                    g += row[i + 1] & 0xff;
+                    b += row[i + 2] & 0xff;
+                }
+            }
+
+            sums[s] += r;
+            sums[s + 1] += g;
+            sums[s + 2] += b;
+            sums[s + 3] += a;
+        }
+
+        this.rows++;
+    }
+
+    /**
+     * Writes the averages of the rows added since the last call to {@code rgba[0, outputWidth)}
+     * as {@code 0xRRGGBBAA}, then starts the next output row.
+     */
+    void readRow(int @NotNull [] rgba) {
+        long[] sums = this.sums;
+
+        for (int x = 0, s = 0; x < this.outputWidth; x++, s += 4) {
+            long count = (long) this.rows * Math.min(this.factor, this.width - x * this.factor);
+
+            if (this.channels == 4) {
+                long a = sums[s + 3];
+
+                rgba[x] = a == 0 ? 0 : average(sums[s], a) << 24 |
+                        average(sums[s + 1], a) << 16 |
+                        average(sums[s + 2], a) << 8 |
+                        average(a, count);
+            } else {
+                rgba[x] = average(sums[s], count) << 24 |
+                        average(sums[s + 1], count) << 16 |
+                        average(sums[s + 2], count) << 8 |
+                        0xff;
+            }
+        }
+
+        Arrays.fill(sums, 0);
+
+        this.rows = 0;
+    }
+
+    /**
+     * Like {@link #readRow(int[])}, writing interleaved RGB(A) bytes to {@code row} at {@code offset}.
+     */
+    void readRow(byte @NotNull [] row, int offset, int @NotNull [] rgba) {
+        readRow(rgba);
+
+        for (int x = 0, i = offset; x < this.outputWidth; x++, i += this.channels) {
+            int px = rgba[x];
+
+            row[i] = (byte) (px >>> 24);
+            row[i + 1] = (byte) (px >>> 16);
+            row[i + 2] = (byte) (px >>> 8);
+
+            if (this.channels == 4) {
+                row[i + 3] = (byte) px;
+            }
+        }
+    }
+
+    private static int average(long sum, long count) {
+        return (int) ((sum + count / 2) / count);
+    }
+
+}
@@ -0,0 +1,157 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * Scratch arrays shared by readers and writers, so decoding or encoding many images
+ * of similar sizes does not allocate them again for every image.
+ * <p>
+ * Arrays are grouped by size class, the next power of two of the requested length,
+ * and a returned array may be longer than requested. At most {@code maxArrays} arrays
+ * of each class are kept. Pools are thread safe, see
+ * {@link QOIImageReadParam#setBufferPool} and {@link QOIImageWriteParam#setBufferPool}.
+ */
+public final class QOIBufferPool {
+
+    // Class n holds arrays of at least 2^n elements
+    private static final int CLASSES = 32;
+
+    private final int maxArrays;
+
+    private final ArrayDeque<int[]>[] ints = newClasses();
+
+    private final ArrayDeque<byte[]>[] bytes = newClasses();
+
+    public QOIBufferPool(int maxArrays) {
+        if (maxArrays <= 0) {
+            throw new IllegalArgumentException("maxArrays <= 0");
+        }
+
+        this.maxArrays = maxArrays;
+    }
+
+    /**
+     * @return an array of at least {@code length} ints, with undefined content
+     */
+    synchronized int @NotNull [] getInts(int length) {
+        int[] array = this.ints[getSizeClass(length)].poll();
+
+        return array != null ? array : new int[getClassLength(length)];
+    }
+
+    /**
+     * @return an array of at least {@code length} bytes, with undefined content
+     */
+    synchronized byte @NotNull [] getBytes(int length) {
+        byte[] array = this.bytes[getSizeClass(length)].poll();
+
+        return array != null ? array : new byte[getClassLength(length)];
+    }
+
+    /**
+     * Returns an array taken from this pool. It must not be used anymore.
+     */
+    synchronized void release(int @NotNull [] array) {
+        if (array.length == 0) {
+            return;
+        }
+
+        ArrayDeque<int[]> arrays = this.ints[getReleaseClass(array.length)];
+
+        if (arrays.size() < this.maxArrays) {
+            arrays.push(array);
+        }
+    }
+
+    /**
+     * Returns an array taken from this pool. It must not be used anymore.
+     */
+    synchronized void release(byte @NotNull [] array) {
+        if (array.length == 0) {
+            return;
+        }
+
+        ArrayDeque<byte[]> arrays = this.bytes[getReleaseClass(array.length)];
+
+        if (arrays.size() < this.maxArrays) {
+            arrays.push(array);
+        }
+    }
+
+    /**
+     * Drops all arrays kept by the pool.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CLASSES; i++) {
+            this.ints[i].clear();
+            this.bytes[i].clear();
+        }
+    }
+
+    /**
+     * @return the class serving requests of {@code length} elements
+     */
+    private static int getSizeClass(int length) {
+        return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    /**
+     * @return the class an array of {@code length} elements is long enough for
+     */
+    private static int getReleaseClass(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    private static int getClassLength(int length) {
+        int sizeClass = getSizeClass(length);
+
+        // Beyond 2^30 elements arrays are allocated as requested
+        return sizeClass < CLASSES - 1 ? 1 << sizeClass : length;
+    }
+
+    /**
+     * @return an array of at least {@code length} ints, from {@code pool} unless it is null
+     */
+    static int @NotNull [] allocateInts(QOIBufferPool pool, int length) {
+        return pool != null ? pool.getInts(length) : new int[length];
+    }
+
+    /**
+     * @return an array of at least {@code length} bytes, from {@code pool} unless it is null
+     */
+    static byte @NotNull [] allocateBytes(QOIBufferPool pool, int length) {
+        return pool != null ? pool.getBytes(length) : new byte[length];
+    }
+
+    /**
+     * Returns {@code array} to {@code pool}, unless either is null.
+     */
+    static void free(QOIBufferPool pool, int[] array) {
+        if (pool != null && array != null) {
+            pool.release(array);
+        }
+    }
+
+    /**
+     * Returns {@code array} to {@code pool}, unless either is null.
+     */
+    static void free(QOIBufferPool pool, byte[] array) {
+        if (pool != null && array != null) {
+            pool.release(array);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArrayDeque<T>[] newClasses() {
+        ArrayDeque<T>[] classes = new ArrayDeque[CLASSES];
+
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new ArrayDeque<>();
+        }
+
+        return classes;
+    }
+
+}
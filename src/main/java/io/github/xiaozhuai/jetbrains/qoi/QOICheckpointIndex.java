@@ -0,0 +1,265 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Decoder state recorded every {@link #getInterval()} rows, so decoding can resume
+ * at a row boundary instead of replaying the stream from the first pixel.
+ * <p>
+ * Checkpoint {@code i} describes the state right before row {@code i * interval}:
+ * the byte offset of the next op (relative to the start of the header), the
+ * previous pixel, the pixels still pending from the last run and the 64-entry index.
+ * <p>
+ * A stored index also records the version of the image it was recorded from: the
+ * modification time of the file, if the input was one, and the SHA-256 digest of the
+ * encoded image.
+ */
+final class QOICheckpointIndex {
+
+    private static final int MAGIC = 0x514f4943; // "QOIC"
+    private static final int VERSION = 2;
+
+    static final int DIGEST_SIZE = 32;
+
+    // Longest run a single op can encode, pending runs are always shorter
+    private static final int MAX_RUN = 62;
+
+    private final int width;
+    private final int height;
+    private final int interval;
+
+    private int size;
+    private final long[] offsets;
+    private final int[] pixels;
+    private final int[] runs;
+    private final int[] indexes;
+
+    // Offset right after the end marker, -1 until the whole image was decoded once
+    private long length = -1;
+
+    // Modification time of the file the index was recorded from, -1 if the input was no file
+    private long modified = -1;
+
+    // SHA-256 of the bytes [0, length) of the image, null until known
+    private byte[] digest;
+
+    QOICheckpointIndex(int width, int height, int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.interval = interval;
+
+        int capacity = (height + interval - 1) / interval;
+
+        this.offsets = new long[capacity];
+        this.pixels = new int[capacity];
+        this.runs = new int[capacity];
+        this.indexes = new int[capacity * 64];
+    }
+
+    int getInterval() {
+        return this.interval;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isComplete() {
+        return this.length >= 0;
+    }
+
+    long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return whether the state before row {@code y} is the next one to record
+     */
+    boolean isNext(int y) {
+        return y == this.size * this.interval && y < this.height;
+    }
+
+    void add(long offset, int pixel, int run, int @NotNull [] index) {
+        int i = this.size++;
+
+        this.offsets[i] = offset;
+        this.pixels[i] = pixel;
+        this.runs[i] = run;
+
+        System.arraycopy(index, 0, this.indexes, i * 64, 64);
+    }
+
+    void complete(long length) {
+        this.length = length;
+    }
+
+    long getModified() {
+        return this.modified;
+    }
+
+    byte[] getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Records the version of the image the index belongs to, before it is written.
+     */
+    void setSource(long modified, byte @NotNull [] digest) {
+        this.modified = modified;
+        this.digest = digest;
+    }
+
+    /**
+     * @return the last checkpoint at or before row {@code y}, or -1 if there is none
+     */
+    int floor(int y) {
+        return Math.min(y / this.interval, this.size - 1);
+    }
+
+    int getRow(int i) {
+        return i * this.interval;
+    }
+
+    long getPixelsBefore(int i) {
+        return (long) getRow(i) * this.width;
+    }
+
+    long getOffset(int i) {
+        return this.offsets[i];
+    }
+
+    int getPixel(int i) {
+        return this.pixels[i];
+    }
+
+    int getRun(int i) {
+        return this.runs[i];
+    }
+
+    void copyIndex(int i, int @NotNull [] index) {
+        System.arraycopy(this.indexes, i * 64, index, 0, 64);
+    }
+
+    /**
+     * Writes the index followed by the CRC32 of everything before it.
+     */
+    void write(@NotNull OutputStream output) throws IOException {
+        if (!isComplete() || this.digest == null) {
+            throw new IllegalStateException("Index is not complete");
+        }
+
+        CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(this.width);
+        out.writeInt(this.height);
+        out.writeInt(this.interval);
+        out.writeLong(this.length);
+        out.writeLong(this.modified);
+        out.write(this.digest);
+        out.writeInt(this.size);
+
+        for (int i = 0; i < this.size; i++) {
+            out.writeLong(this.offsets[i]);
+            out.writeInt(this.pixels[i]);
+            out.writeInt(this.runs[i]);
+
+            for (int j = 0; j < 64; j++) {
+                out.writeInt(this.indexes[i * 64 + j]);
+            }
+        }
+
+        out.flush();
+
+        new DataOutputStream(output).writeInt((int) checked.getChecksum().getValue());
+    }
+
+    /**
+     * Reads an index written by {@link #write(OutputStream)}. Whether it belongs to this version
+     * of the image is left to the caller, through {@link #getModified()} and {@link #getDigest()}.
+     *
+     * @return the index, or null if it is damaged or does not describe an image with this header
+     */
+    static QOICheckpointIndex read(@NotNull InputStream input, @NotNull QOIHeader header) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+        }
+
+        int width = in.readInt();
+        int height = in.readInt();
+        int interval = in.readInt();
+        long indexedLength = in.readLong();
+        long modified = in.readLong();
+        byte[] digest = new byte[DIGEST_SIZE];
+        in.readFully(digest);
+        int size = in.readInt();
+
+        if (width != header.width ||
+                height != header.height ||
+                interval <= 0 ||
+                indexedLength < QOIHeader.SIZE + QOIDecoder.PADDING_SIZE ||
+                size != (height + interval - 1) / interval) {
+            return null;
+        }
+
+        QOICheckpointIndex index = new QOICheckpointIndex(width, height, interval);
+        int[] slots = new int[64];
+
+        long pixels = header.getPixelCount();
+        long previous = QOIHeader.SIZE;
+
+        for (int i = 0; i < size; i++) {
+            long offset = in.readLong();
+            int pixel = in.readInt();
+            int run = in.readInt();
+
+            for (int j = 0; j < 64; j++) {
+                slots[j] = in.readInt();
+            }
+
+            // Every op of a checkpoint lies between the header and the end marker, in order
+            if (offset < previous ||
+                    offset > indexedLength - QOIDecoder.PADDING_SIZE ||
+                    i == 0 && (offset != QOIHeader.SIZE || run != 0) ||
+                    run < 0 ||
+                    run >= MAX_RUN ||
+                    run > pixels - index.getPixelsBefore(i)) {
+                return null;
+            }
+
+            previous = offset;
+
+            index.add(offset, pixel, run, slots);
+        }
+
+        int checksum = (int) checked.getChecksum().getValue();
+
+        if (in.readInt() != checksum) {
+            return null;
+        }
+
+        index.complete(indexedLength);
+        index.setSource(modified, digest);
+
+        return index;
+    }
+
+}
@@ -0,0 +1,245 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageReader;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Application service decoding QOI files for display off the calling thread, on a bounded pool.
+ * <p>
+ * Concurrent requests for the same version of a file share a single decode, each getting
+ * its own image. A decode is aborted once every request for it is cancelled.
+ */
+public final class QOIDecodeService implements Disposable {
+
+    /**
+     * Files decoded at the same time. Each decode may use the common pool for large images.
+     */
+    public static final int DEFAULT_MAX_DECODES = Math.max(Integer.getInteger("qoi.maxDecodes", Runtime.getRuntime().availableProcessors() / 2), 1);
+
+    private final ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("QOI Decoder", DEFAULT_MAX_DECODES);
+
+    // Decodes in flight, by file version and size
+    private final Map<String, Decode> decodes = new HashMap<>();
+
+    public static @NotNull QOIDecodeService getInstance() {
+        return ApplicationManager.getApplication().getService(QOIDecodeService.class);
+    }
+
+    /**
+     * Decodes the current version of {@code file}, or joins a decode of it already in flight.
+     * With a positive {@code size}, the smallest thumbnail whose longer side still has at least
+     * {@code size} pixels is decoded instead of the full image, if the image has one.
+     * Cancelling the returned future withdraws this request only.
+     */
+    public @NotNull CompletableFuture<BufferedImage> decode(@NotNull VirtualFile file, int size) {
+        String key = file.getPath() + ":" + file.getModificationStamp() + ":" + size;
+
+        CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+
+        Decode decode;
+
+        synchronized (this.decodes) {
+            decode = this.decodes.get(key);
+
+            if (decode == null) {
+                decode = new Decode(key);
+
+                this.decodes.put(key, decode);
+
+                Decode started = decode;
+
+                decode.task = this.executor.submit(() -> run(started, file, size));
+            }
+
+            decode.requests.add(result);
+        }
+
+        Decode joined = decode;
+
+        result.whenComplete((image, error) -> {
+            if (result.isCancelled()) {
+                cancel(joined, result);
+            }
+        });
+
+        return result;
+    }
+
+    private void run(@NotNull Decode decode, @NotNull VirtualFile file, int size) {
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+
+        try {
+            synchronized (this.decodes) {
+                if (decode.requests.isEmpty()) {
+                    return;
+                }
+
+                decode.reader = reader;
+            }
+
+            reader.setInput(readContent(file));
+
+            complete(decode, read(reader, size), null);
+        } catch (Throwable e) {
+            complete(decode, null, e);
+        } finally {
+            synchronized (this.decodes) {
+                this.decodes.remove(decode.key, decode);
+
+                decode.reader = null;
+            }
+
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Reads the image, or the thumbnail for {@code size}, in a layout Java2D draws without conversion.
+     */
+    private static @NotNull BufferedImage read(@NotNull ImageReader reader, int size) throws IOException {
+        if (size > 0) {
+            int thumbnail = -1;
+
+            while (thumbnail + 1 < reader.getNumThumbnails(0) &&
+                    Math.max(reader.getThumbnailWidth(0, thumbnail + 1), reader.getThumbnailHeight(0, thumbnail + 1)) >= size) {
+                thumbnail++;
+            }
+
+            if (thumbnail >= 0) {
+                return reader.readThumbnail(0, thumbnail);
+            }
+        }
+
+        QOIImageReadParam param = new QOIImageReadParam();
+        param.setPackedPixels(true);
+
+        return reader.read(0, param);
+    }
+
+    /**
+     * Hands the result to the requests still waiting for it. The first gets the decoded image,
+     * the others get copies made before any request sees it.
+     */
+    private void complete(@NotNull Decode decode, BufferedImage image, Throwable error) {
+        List<CompletableFuture<BufferedImage>> requests;
+
+        synchronized (this.decodes) {
+            this.decodes.remove(decode.key, decode);
+
+            requests = new ArrayList<>(decode.requests);
+
+            decode.requests.clear();
+        }
+
+        if (error != null) {
+            for (CompletableFuture<BufferedImage> request : requests) {
+                request.completeExceptionally(error);
+            }
+
+            return;
+        }
+
+        // An aborted decode has no requests left, its image may be incomplete
+        List<BufferedImage> images = new ArrayList<>(requests.size());
+
+        for (int i = 0; i < requests.size(); i++) {
+            images.add(i == 0 ? image : QOIImageCache.copy(image));
+        }
+
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).complete(images.get(i));
+        }
+    }
+
+    /**
+     * Withdraws a request, aborting the decode if it was the last one.
+     */
+    private void cancel(@NotNull Decode decode, @NotNull CompletableFuture<BufferedImage> request) {
+        synchronized (this.decodes) {
+            if (!decode.requests.remove(request) || !decode.requests.isEmpty()) {
+                return;
+            }
+
+            this.decodes.remove(decode.key, decode);
+
+            if (decode.reader != null) {
+                decode.reader.abort();
+            }
+
+            decode.task.cancel(false);
+        }
+    }
+
+    /**
+     * Reads {@code file} into the heap. Local files are read directly, rather than mapped or
+     * through the content cache of the VFS, so they are never held open.
+     */
+    static byte @NotNull [] readContent(@NotNull VirtualFile file) throws IOException {
+        if (file.isInLocalFileSystem()) {
+            return Files.readAllBytes(Path.of(file.getPath()));
+        }
+
+        return file.contentsToByteArray();
+    }
+
+    @Override
+    public void dispose() {
+        this.executor.shutdownNow();
+
+        List<CompletableFuture<BufferedImage>> requests = new ArrayList<>();
+
+        synchronized (this.decodes) {
+            for (Decode decode : this.decodes.values()) {
+                requests.addAll(decode.requests);
+
+                decode.requests.clear();
+
+                if (decode.reader != null) {
+                    decode.reader.abort();
+                }
+            }
+
+            this.decodes.clear();
+        }
+
+        // Outside the lock, cancelling runs the callbacks of the requests
+        for (CompletableFuture<BufferedImage> request : requests) {
+            request.cancel(false);
+        }
+    }
+
+    private static final class Decode {
+
+        private final String key;
+
+        // Requests not cancelled or completed yet
+        private final List<CompletableFuture<BufferedImage>> requests = new ArrayList<>();
+
+        // Set while the decode runs
+        private ImageReader reader;
+
+        private Future<?> task;
+
+        Decode(@NotNull String key) {
+            this.key = key;
+        }
+
+    }
+
+}
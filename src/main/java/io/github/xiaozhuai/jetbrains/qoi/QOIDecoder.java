@@ -0,0 +1,543 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Single-pass QOI decoder.
+ * <p>
+ * Input is either pulled from a stream or a buffer in large chunks, or read in place
+ * from a heap array. The 64-entry index is kept as
+ * packed RGBA {@code int}s and pixels are written straight into the caller's array,
+ * so nothing is allocated per pixel or per op.
+ * <p>
+ * The decoder never reads past the end of the image, so trailing data in the
+ * stream is left untouched.
+ */
+final class QOIDecoder {
+
+    static final int PADDING_SIZE = 8;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Longest op: QOI_OP_RGBA
+    private static final int MAX_OP_SIZE = 5;
+
+    // Longest run a single op can encode
+    private static final int MAX_RUN = 62;
+
+    private static final int QOI_OP_INDEX = 0x00;
+    private static final int QOI_OP_DIFF = 0x40;
+    private static final int QOI_OP_LUMA = 0x80;
+    private static final int QOI_OP_RGB = 0xfe;
+    private static final int QOI_OP_RGBA = 0xff;
+    private static final int QOI_MASK_2 = 0xc0;
+
+    // Null unless decoding from a stream
+    private final ImageInputStream input;
+
+    // Stream position of the header
+    private final long start;
+
+    // Heap array decoded in place, null otherwise
+    private final byte[] data;
+
+    // Any other buffer, copied in chunks, null otherwise
+    private final ByteBuffer source;
+    private int sourcePosition;
+
+    // Index of the header and end of the data, in data or source
+    private final int base;
+    private final int end;
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    // Offset of buffer[0], relative to the header
+    private long bufferOffset;
+
+    private QOIHeader header;
+
+    private final int[] index = new int[64];
+
+    // Last decoded pixel, packed as 0xRRGGBBAA
+    private int pixel = 0xff;
+
+    // Pixels of the last decoded op that were not written yet
+    private int run;
+
+    // Pixels not covered by any decoded op yet
+    private long remaining;
+
+    QOIDecoder(@NotNull ImageInputStream input) throws IOException {
+        this(input, new byte[CHUNK_SIZE]);
+    }
+
+    /**
+     * Reads the stream in chunks of {@code buffer.length} bytes into {@code buffer}, which
+     * must hold at least the longest op and must not be used by another decoder at the same time.
+     */
+    QOIDecoder(@NotNull ImageInputStream input, byte @NotNull [] buffer) throws IOException {
+        this.input = input;
+        this.start = input.getStreamPosition();
+        this.data = null;
+        this.source = null;
+        this.base = 0;
+        this.end = 0;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code data}, which must
+     * start with the header. The buffer itself is never modified, so any number of
+     * decoders may share it.
+     * <p>
+     * Heap buffers are decoded in place, anything else (direct or mapped buffers) is
+     * copied in chunks.
+     */
+    QOIDecoder(@NotNull ByteBuffer data) {
+        this.input = null;
+        this.start = 0;
+
+        if (data.hasArray()) {
+            this.data = data.array();
+            this.source = null;
+            this.base = data.arrayOffset() + data.position();
+            this.end = data.arrayOffset() + data.limit();
+            this.buffer = this.data;
+            this.position = this.base;
+            this.limit = this.end;
+            this.bufferOffset = -this.base;
+        } else {
+            this.data = null;
+            this.source = data;
+            this.base = data.position();
+            this.end = data.limit();
+            this.sourcePosition = this.base;
+            this.buffer = new byte[CHUNK_SIZE];
+        }
+    }
+
+    QOIHeader readHeader() throws IOException {
+        if (this.header == null) {
+            if (this.data != null) {
+                if (this.end - this.base < QOIHeader.SIZE) {
+                    throw new EOFException("Unexpected end of QOI stream");
+                }
+
+                this.header = QOIHeader.parse(this.data, this.base);
+                this.position = this.base + QOIHeader.SIZE;
+            } else {
+                byte[] b = new byte[QOIHeader.SIZE];
+
+                if (this.input != null) {
+                    this.input.readFully(b);
+                } else if (readSource(b, 0, b.length) < b.length) {
+                    throw new EOFException("Unexpected end of QOI stream");
+                }
+
+                this.header = QOIHeader.parse(b, 0);
+                this.bufferOffset = QOIHeader.SIZE;
+            }
+
+            this.remaining = this.header.getPixelCount();
+        }
+
+        return this.header;
+    }
+
+    /**
+     * Decodes the next {@code count} pixels into {@code dst} as interleaved
+     * RGB ({@code channels == 3}) or RGBA ({@code channels == 4}) bytes.
+     * Color samples are mapped through {@code colorTable} unless it is null.
+     */
+    void readPixels(byte @NotNull [] dst, int offset, int count, int channels, byte[] colorTable) throws IOException {
+        int i = offset;
+        int end = offset + count * channels;
+        int run = this.run;
+
+        while (i < end) {
+            if (run == 0) {
+                run = nextOp();
+            }
+
+            int px = map(this.pixel, colorTable);
+            int n = Math.min(run, (end - i) / channels);
+
+            run -= n;
+
+            byte r = (byte) (px >>> 24);
+            byte g = (byte) (px >>> 16);
+            byte b = (byte) (px >>> 8);
+
+            if (channels == 4) {
+                byte a = (byte) px;
+
+                for (int stop = i + n * 4; i < stop; i += 4) {
+                    dst[i] = r;
+                    dst[i + 1] = g;
+                    dst[i + 2] = b;
+                    dst[i + 3] = a;
+                }
+            } else {
+                for (int stop = i + n * 3; i < stop; i += 3) {
+                    dst[i] = r;
+                    dst[i + 1] = g;
+                    dst[i + 2] = b;
+                }
+            }
+        }
+
+        this.run = run;
+    }
+
+    /**
+     * Decodes the next {@code count} pixels into {@code dst} as packed ints, in the layout of
+     * {@link java.awt.image.BufferedImage#TYPE_INT_ARGB_PRE} if {@code alpha} is set, otherwise
+     * in the layout of {@link java.awt.image.BufferedImage#TYPE_INT_RGB}. Every op is
+     * converted once, however many pixels it covers. Color samples are mapped through
+     * {@code colorTable} unless it is null.
+     */
+    void readPixels(int @NotNull [] dst, int offset, int count, boolean alpha, byte[] colorTable) throws IOException {
+        int i = offset;
+        int end = offset + count;
+        int run = this.run;
+
+        while (i < end) {
+            if (run == 0) {
+                run = nextOp();
+            }
+
+            int px = map(this.pixel, colorTable);
+            int n = Math.min(run, end - i);
+
+            run -= n;
+
+            int value = alpha ? toArgbPre(px) : px >>> 8;
+
+            for (int stop = i + n; i < stop; i++) {
+                dst[i] = value;
+            }
+        }
+
+        this.run = run;
+    }
+
+    /**
+     * Maps the color samples of {@code 0xRRGGBBAA} through {@code table}, alpha is kept.
+     */
+    static int map(int px, byte[] table) {
+        if (table == null) {
+            return px;
+        }
+
+        return (table[px >>> 24] & 0xff) << 24 |
+                (table[px >>> 16 & 0xff] & 0xff) << 16 |
+                (table[px >>> 8 & 0xff] & 0xff) << 8 |
+                px & 0xff;
+    }
+
+    /**
+     * Converts {@code 0xRRGGBBAA} to premultiplied {@code 0xAARRGGBB}.
+     */
+    static int toArgbPre(int px) {
+        int a = px & 0xff;
+
+        if (a == 0xff) {
+            return 0xff000000 | px >>> 8;
+        }
+
+        return a << 24 |
+                multiply(px >>> 24, a) << 16 |
+                multiply(px >>> 16 & 0xff, a) << 8 |
+                multiply(px >>> 8 & 0xff, a);
+    }
+
+    /**
+     * @return {@code c * a / 255}, rounded
+     */
+    static int multiply(int c, int a) {
+        int t = c * a + 128;
+
+        return (t + (t >>> 8)) >>> 8;
+    }
+
+    /**
+     * Advances the decoder state past the next {@code count} pixels without writing them anywhere.
+     */
+    void skipPixels(long count) throws IOException {
+        long left = count;
+        int run = this.run;
+
+        while (left > 0) {
+            if (run == 0) {
+                run = nextOp();
+            }
+
+            int n = (int) Math.min(run, left);
+
+            run -= n;
+            left -= n;
+        }
+
+        this.run = run;
+    }
+
+    /**
+     * @return offset of the next unread byte, relative to the start of the header
+     */
+    long getOffset() {
+        return this.bufferOffset + this.position;
+    }
+
+    void saveCheckpoint(@NotNull QOICheckpointIndex checkpoints) {
+        checkpoints.add(getOffset(), this.pixel, this.run, this.index);
+    }
+
+    /**
+     * Seeks to checkpoint {@code i}, the next pixel read is then the first pixel of its row.
+     */
+    void restoreCheckpoint(@NotNull QOICheckpointIndex checkpoints, int i) throws IOException {
+        long offset = checkpoints.getOffset(i);
+
+        // Loaded indexes are checked, this only guards against reading outside of the data
+        if (offset < QOIHeader.SIZE || this.input == null && offset > this.end - this.base - PADDING_SIZE) {
+            throw new IIOException("Checkpoint " + i + " lies outside of the image");
+        }
+
+        if (this.data != null) {
+            this.buffer = this.data;
+            this.position = this.base + (int) offset;
+            this.limit = this.end;
+            this.bufferOffset = -this.base;
+        } else {
+            if (this.input != null) {
+                this.input.seek(this.start + offset);
+            } else {
+                this.sourcePosition = this.base + (int) offset;
+            }
+
+            this.position = 0;
+            this.limit = 0;
+            this.bufferOffset = offset;
+        }
+
+        this.pixel = checkpoints.getPixel(i);
+        this.run = checkpoints.getRun(i);
+        this.remaining = this.header.getPixelCount() - checkpoints.getPixelsBefore(i) - this.run;
+
+        checkpoints.copyIndex(i, this.index);
+    }
+
+    /**
+     * Consumes the end marker that follows the last pixel.
+     */
+    void finish() throws IOException {
+        if (this.remaining > 0 || this.run > 0) {
+            throw new IllegalStateException("Not all pixels were read");
+        }
+
+        int buffered = Math.max(this.limit - this.position, 0);
+
+        if (this.data != null) {
+            this.position += Math.min(buffered, PADDING_SIZE);
+
+            return;
+        }
+
+        if (buffered < PADDING_SIZE) {
+            if (this.input != null) {
+                this.input.skipBytes(PADDING_SIZE - buffered);
+            } else {
+                this.sourcePosition = Math.min(this.sourcePosition + PADDING_SIZE - buffered, this.end);
+            }
+        }
+
+        this.bufferOffset += this.position + PADDING_SIZE;
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Decodes the next op into {@link #pixel} and returns the number of pixels it covers.
+     */
+    private int nextOp() throws IOException {
+        if (this.remaining <= 0) {
+            throw new IllegalStateException("All pixels were read");
+        }
+
+        if (this.limit - this.position < MAX_OP_SIZE) {
+            fill();
+        }
+
+        byte[] b = this.buffer;
+        int p = this.position;
+        int px = this.pixel;
+        int count = 1;
+
+        int b1 = b[p++] & 0xff;
+
+        if (b1 == QOI_OP_RGB) {
+            px = (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 | (px & 0xff);
+            p += 3;
+        } else if (b1 == QOI_OP_RGBA) {
+            px = (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+            p += 4;
+        } else {
+            switch (b1 & QOI_MASK_2) {
+                case QOI_OP_INDEX:
+                    px = this.index[b1];
+                    break;
+                case QOI_OP_DIFF: {
+                    int r = (px >>> 24) + ((b1 >> 4) & 0x03) - 2;
+                    int g = (px >>> 16) + ((b1 >> 2) & 0x03) - 2;
+                    int bl = (px >>> 8) + (b1 & 0x03) - 2;
+                    px = (r & 0xff) << 24 | (g & 0xff) << 16 | (bl & 0xff) << 8 | (px & 0xff);
+                    break;
+                }
+                case QOI_OP_LUMA: {
+                    int b2 = b[p++] & 0xff;
+                    int vg = (b1 & 0x3f) - 32;
+                    int r = (px >>> 24) + vg - 8 + ((b2 >> 4) & 0x0f);
+                    int g = (px >>> 16) + vg;
+                    int bl = (px >>> 8) + vg - 8 + (b2 & 0x0f);
+                    px = (r & 0xff) << 24 | (g & 0xff) << 16 | (bl & 0xff) << 8 | (px & 0xff);
+                    break;
+                }
+                default:
+                    // QOI_OP_RUN
+                    count = (b1 & 0x3f) + 1;
+                    break;
+            }
+        }
+
+        this.index[hash(px)] = px;
+        this.pixel = px;
+        this.position = p;
+
+        if (count > this.remaining) {
+            count = (int) this.remaining;
+        }
+
+        this.remaining -= count;
+
+        return count;
+    }
+
+    private void fill() throws IOException {
+        if (this.data != null) {
+            fillFromMemory();
+
+            return;
+        }
+
+        int buffered = Math.max(this.limit - this.position, 0);
+
+        if (buffered > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, buffered);
+        }
+
+        this.bufferOffset += this.limit - buffered;
+        this.position = 0;
+        this.limit = buffered;
+
+        // Every op covers at most MAX_RUN pixels and the pixel data is followed by
+        // the end marker, which bounds how many bytes may still be read safely.
+        long safe = (this.remaining + MAX_RUN - 1) / MAX_RUN + PADDING_SIZE;
+        int want = (int) Math.min(this.buffer.length, safe);
+
+        while (this.limit < want) {
+            int n = this.input != null ?
+                    this.input.read(this.buffer, this.limit, want - this.limit) :
+                    readSource(this.buffer, this.limit, want - this.limit);
+
+            if (n < 0) {
+                break;
+            }
+
+            this.limit += n;
+        }
+
+        if (this.limit == 0) {
+            throw new EOFException("Unexpected end of QOI stream");
+        }
+
+        // Truncated stream, decode what is left against zeros
+        for (int i = this.limit; i < MAX_OP_SIZE; i++) {
+            this.buffer[i] = 0;
+        }
+    }
+
+    /**
+     * Near the end of an in-memory file, moves the last bytes into a zero-padded buffer so
+     * that a truncated file cannot make an op read past its end.
+     */
+    private void fillFromMemory() throws EOFException {
+        int buffered = Math.max(this.limit - this.position, 0);
+
+        if (buffered == 0) {
+            throw new EOFException("Unexpected end of QOI stream");
+        }
+
+        if (this.buffer != this.data) {
+            // Already padded
+            return;
+        }
+
+        byte[] tail = new byte[MAX_OP_SIZE * 2];
+
+        System.arraycopy(this.data, this.position, tail, 0, buffered);
+
+        this.bufferOffset = this.position - this.base;
+        this.buffer = tail;
+        this.position = 0;
+        this.limit = buffered;
+    }
+
+    /**
+     * Copies up to {@code length} bytes from the source buffer, without touching its position.
+     *
+     * @return the number of bytes copied, or -1 at the end of the data
+     */
+    private int readSource(byte @NotNull [] b, int offset, int length) {
+        int n = Math.min(length, this.end - this.sourcePosition);
+
+        if (n <= 0) {
+            return -1;
+        }
+
+        this.source.get(this.sourcePosition, b, offset, n);
+        this.sourcePosition += n;
+
+        return n;
+    }
+
+    static int hash(int px) {
+        return ((px >>> 24) * 3 + ((px >>> 16) & 0xff) * 5 + ((px >>> 8) & 0xff) * 7 + (px & 0xff) * 11) & 63;
+    }
+
+    /**
+     * Maps 8-bit linear samples to 8-bit sRGB samples, with the sRGB transfer function.
+     */
+    static final class LinearToSRGB {
+
+        static final byte[] TABLE = new byte[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                double linear = i / 255.0;
+                double encoded = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+
+                TABLE[i] = (byte) Math.round(encoded * 255);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,200 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static io.github.xiaozhuai.jetbrains.qoi.QOIPluginConstants.QOI_END_MARKER;
+import static io.github.xiaozhuai.jetbrains.qoi.QOIPluginConstants.QOI_HEADER;
+
+/**
+ * Streaming QOI encoder.
+ * <p>
+ * Pixels are passed in as packed {@code 0xRRGGBBAA} ints, ops are collected in a chunk
+ * buffer that is handed to the output whenever it fills up.
+ */
+final class QOIEncoder {
+
+    static final int INITIAL_PIXEL = 0xff;
+
+    // Longest run a single op can encode
+    static final int MAX_RUN = 62;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // A pixel emits at most a pending run and a QOI_OP_RGBA
+    private static final int MAX_PIXEL_SIZE = 6;
+
+    private static final int QOI_OP_DIFF = 0x40;
+    private static final int QOI_OP_LUMA = 0x80;
+    private static final int QOI_OP_RUN = 0xc0;
+    private static final int QOI_OP_RGB = 0xfe;
+    private static final int QOI_OP_RGBA = 0xff;
+
+    private final OutputStream output;
+
+    private final byte[] buffer;
+    private int position;
+
+    private final int[] index = new int[64];
+
+    private int pixel = INITIAL_PIXEL;
+
+    // Pixels equal to the previous one that were not written yet
+    private int run;
+
+    QOIEncoder(@NotNull OutputStream output) {
+        this(output, new byte[CHUNK_SIZE]);
+    }
+
+    /**
+     * Collects ops in {@code buffer}, which must hold at least a header and an end marker
+     * and must not be used by another encoder at the same time.
+     */
+    QOIEncoder(@NotNull OutputStream output, byte @NotNull [] buffer) {
+        this.output = output;
+        this.buffer = buffer;
+    }
+
+    void writeHeader(int width, int height, int channels, @NotNull QOIColorSpace colorSpace) {
+        byte[] b = this.buffer;
+        int p = this.position;
+
+        System.arraycopy(QOI_HEADER, 0, b, p, QOI_HEADER.length);
+        p += QOI_HEADER.length;
+
+        p = writeInt(b, p, width);
+        p = writeInt(b, p, height);
+
+        b[p++] = (byte) channels;
+        b[p++] = (byte) (colorSpace == QOIColorSpace.LINEAR ? 1 : 0);
+
+        this.position = p;
+    }
+
+    /**
+     * Continues encoding after the given pixel, with {@code run} pixels equal to it
+     * still pending and the given index.
+     */
+    void setState(int pixel, int run, int @NotNull [] index) {
+        this.pixel = pixel;
+        this.run = run;
+
+        System.arraycopy(index, 0, this.index, 0, 64);
+    }
+
+    void encode(int @NotNull [] pixels, int offset, int count) throws IOException {
+        byte[] b = this.buffer;
+        int[] index = this.index;
+        int p = this.position;
+        int prev = this.pixel;
+        int run = this.run;
+
+        int limit = b.length - MAX_PIXEL_SIZE;
+
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int px = pixels[i];
+
+            if (p > limit) {
+                this.output.write(b, 0, p);
+                p = 0;
+            }
+
+            if (px == prev) {
+                if (++run == MAX_RUN) {
+                    b[p++] = (byte) (QOI_OP_RUN | (MAX_RUN - 1));
+                    run = 0;
+                }
+
+                continue;
+            }
+
+            if (run > 0) {
+                b[p++] = (byte) (QOI_OP_RUN | (run - 1));
+                run = 0;
+            }
+
+            int hash = QOIDecoder.hash(px);
+
+            if (index[hash] == px) {
+                b[p++] = (byte) hash;
+            } else {
+                index[hash] = px;
+
+                if ((px & 0xff) == (prev & 0xff)) {
+                    int vr = (byte) ((px >>> 24) - (prev >>> 24));
+                    int vg = (byte) ((px >>> 16) - (prev >>> 16));
+                    int vb = (byte) ((px >>> 8) - (prev >>> 8));
+
+                    int vgr = vr - vg;
+                    int vgb = vb - vg;
+
+                    if (vr > -3 && vr < 2 && vg > -3 && vg < 2 && vb > -3 && vb < 2) {
+                        b[p++] = (byte) (QOI_OP_DIFF | (vr + 2) << 4 | (vg + 2) << 2 | (vb + 2));
+                    } else if (vgr > -9 && vgr < 8 && vg > -33 && vg < 32 && vgb > -9 && vgb < 8) {
+                        b[p++] = (byte) (QOI_OP_LUMA | (vg + 32));
+                        b[p++] = (byte) ((vgr + 8) << 4 | (vgb + 8));
+                    } else {
+                        b[p++] = (byte) QOI_OP_RGB;
+                        b[p++] = (byte) (px >>> 24);
+                        b[p++] = (byte) (px >>> 16);
+                        b[p++] = (byte) (px >>> 8);
+                    }
+                } else {
+                    b[p++] = (byte) QOI_OP_RGBA;
+                    b[p++] = (byte) (px >>> 24);
+                    b[p++] = (byte) (px >>> 16);
+                    b[p++] = (byte) (px >>> 8);
+                    b[p++] = (byte) px;
+                }
+            }
+
+            prev = px;
+        }
+
+        this.position = p;
+        this.pixel = prev;
+        this.run = run;
+    }
+
+    /**
+     * Writes the pending run and the end marker, and flushes the chunk buffer.
+     */
+    void finish() throws IOException {
+        if (this.buffer.length - this.position < 1 + QOI_END_MARKER.length) {
+            flush();
+        }
+
+        if (this.run > 0) {
+            this.buffer[this.position++] = (byte) (QOI_OP_RUN | (this.run - 1));
+            this.run = 0;
+        }
+
+        System.arraycopy(QOI_END_MARKER, 0, this.buffer, this.position, QOI_END_MARKER.length);
+        this.position += QOI_END_MARKER.length;
+
+        flush();
+    }
+
+    /**
+     * Hands the buffered ops to the output, keeping any pending run.
+     */
+    void flush() throws IOException {
+        if (this.position > 0) {
+            this.output.write(this.buffer, 0, this.position);
+            this.position = 0;
+        }
+    }
+
+    private static int writeInt(byte @NotNull [] b, int p, int value) {
+        b[p] = (byte) (value >>> 24);
+        b[p + 1] = (byte) (value >>> 16);
+        b[p + 2] = (byte) (value >>> 8);
+        b[p + 3] = (byte) value;
+
+        return p + 4;
+    }
+
+}
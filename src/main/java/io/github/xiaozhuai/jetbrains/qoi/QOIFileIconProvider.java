@@ -0,0 +1,123 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import com.intellij.ide.FileIconProvider;
+import com.intellij.ide.projectView.ProjectView;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shows QOI files in the project view with a thumbnail of their content as icon.
+ * <p>
+ * Icons are served from memory only. A missing one is requested from {@link QOIThumbnailService}
+ * and the file type icon shows until it arrives, the project view is then refreshed once for all
+ * the icons that arrived in the meantime.
+ */
+public final class QOIFileIconProvider implements FileIconProvider {
+
+    /**
+     * Icons kept in memory, least recently used first out.
+     */
+    public static final int DEFAULT_MAX_ICONS = Math.max(Integer.getInteger("qoi.maxIcons", 512), 0);
+
+    private static final int ICON_SIZE = 16;
+
+    // File version -> icon, null if the file could not be decoded, guarded by itself
+    private final Map<String, Icon> icons = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest) {
+            return size() > DEFAULT_MAX_ICONS;
+        }
+    };
+
+    // Versions requested but not arrived yet, guarded by icons
+    private final Set<String> pending = new HashSet<>();
+
+    // Projects whose view waits for a refresh, guarded by itself
+    private final Set<Project> refreshes = new HashSet<>();
+
+    @Override
+    public Icon getIcon(@NotNull VirtualFile file, int flags, Project project) {
+        if (project == null || file.isDirectory() || !QOIPluginConstants.QOI_EXTENSION.equalsIgnoreCase(file.getExtension())) {
+            return null;
+        }
+
+        String key = file.getPath() + ":" + file.getTimeStamp() + ":" + file.getLength();
+
+        synchronized (this.icons) {
+            if (this.icons.containsKey(key) || !this.pending.add(key)) {
+                return this.icons.get(key);
+            }
+        }
+
+        QOIThumbnailService.getInstance().getThumbnail(file, ICON_SIZE).whenComplete((image, error) -> {
+            synchronized (this.icons) {
+                this.pending.remove(key);
+                this.icons.put(key, image != null ? new ThumbnailIcon(image) : null);
+            }
+
+            refresh(project);
+        });
+
+        return null;
+    }
+
+    /**
+     * Refreshes the view of {@code project} on the EDT, once for all icons arriving before it runs.
+     */
+    private void refresh(@NotNull Project project) {
+        synchronized (this.refreshes) {
+            if (!this.refreshes.add(project)) {
+                return;
+            }
+        }
+
+        ApplicationManager.getApplication().invokeLater(() -> {
+            synchronized (this.refreshes) {
+                this.refreshes.remove(project);
+            }
+
+            if (!project.isDisposed()) {
+                ProjectView.getInstance(project).refresh();
+            }
+        });
+    }
+
+    /**
+     * A thumbnail centered in a file icon sized box.
+     */
+    private static final class ThumbnailIcon implements Icon {
+
+        private final BufferedImage image;
+
+        ThumbnailIcon(@NotNull BufferedImage image) {
+            this.image = image;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            g.drawImage(this.image, x + (ICON_SIZE - this.image.getWidth()) / 2, y + (ICON_SIZE - this.image.getHeight()) / 2, null);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return ICON_SIZE;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return ICON_SIZE;
+        }
+
+    }
+
+}
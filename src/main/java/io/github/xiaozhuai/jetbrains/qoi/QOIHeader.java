@@ -0,0 +1,70 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.IIOException;
+import java.io.IOException;
+
+/**
+ * The 14-byte QOI file header.
+ */
+final class QOIHeader {
+
+    static final int SIZE = 14;
+
+    final int width;
+    final int height;
+    final int channels;
+    final QOIColorSpace colorSpace;
+
+    QOIHeader(int width, int height, int channels, @NotNull QOIColorSpace colorSpace) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+    }
+
+    long getPixelCount() {
+        return (long) this.width * this.height;
+    }
+
+    boolean hasAlpha() {
+        return this.channels == 4;
+    }
+
+    static QOIHeader parse(byte @NotNull [] b, int off) throws IOException {
+        for (int i = 0; i < QOIPluginConstants.QOI_HEADER.length; i++) {
+            if (b[off + i] != QOIPluginConstants.QOI_HEADER[i]) {
+                throw new IIOException("Invalid QOI magic");
+            }
+        }
+
+        int width = readInt(b, off + 4);
+        int height = readInt(b, off + 8);
+        int channels = b[off + 12] & 0xff;
+        int colorSpace = b[off + 13] & 0xff;
+
+        if (width <= 0 || height <= 0) {
+            throw new IIOException("Invalid QOI image size " + Integer.toUnsignedString(width) + "x" + Integer.toUnsignedString(height));
+        }
+
+        if (channels != 3 && channels != 4) {
+            throw new IIOException("Invalid QOI channel count " + channels);
+        }
+
+        switch (colorSpace) {
+            case 0:
+                return new QOIHeader(width, height, channels, QOIColorSpace.SRGB);
+            case 1:
+                return new QOIHeader(width, height, channels, QOIColorSpace.LINEAR);
+            default:
+                throw new IIOException("Invalid QOI color space " + colorSpace);
+        }
+    }
+
+    private static int readInt(byte @NotNull [] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,305 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoded images shared by all readers, so reading the same file again does not decode it.
+ * <p>
+ * Images are keyed by the identity and modification time of the file, or by the content of
+ * a stream, and the layout they were decoded into. They are softly referenced and the least
+ * recently used ones are dropped once their total size exceeds the budget. Callers always
+ * get their own copy, which they may modify.
+ */
+public final class QOIImageCache {
+
+    /**
+     * Memory used by the decoded images, in bytes. 0 disables the cache.
+     */
+    public static final long DEFAULT_MAX_BYTES = Math.max(Long.getLong("qoi.imageCacheSize", Runtime.getRuntime().maxMemory() / 8), 0);
+
+    private static final QOIImageCache INSTANCE = new QOIImageCache(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+
+    // Least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    // Entries whose image was collected
+    private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<>();
+
+    private long totalBytes;
+
+    private long hits;
+
+    private long misses;
+
+    QOIImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static @NotNull QOIImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a copy of the cached image, or null if there is none
+     */
+    BufferedImage get(@NotNull Key key) {
+        BufferedImage image;
+
+        synchronized (this) {
+            purge();
+
+            Entry entry = this.entries.get(key);
+            image = entry != null ? entry.get() : null;
+
+            if (image == null) {
+                this.misses++;
+
+                return null;
+            }
+
+            this.hits++;
+        }
+
+        // Copied outside the lock, it is the slow part
+        return copy(image);
+    }
+
+    /**
+     * Stores a copy of {@code image}, unless it is larger than the whole budget.
+     */
+    void put(@NotNull Key key, @NotNull BufferedImage image) {
+        long bytes = getSize(image);
+
+        if (bytes > this.maxBytes) {
+            return;
+        }
+
+        BufferedImage copy = copy(image);
+
+        synchronized (this) {
+            purge();
+
+            remove(key);
+
+            this.entries.put(key, new Entry(key, copy, bytes, this.collected));
+            this.totalBytes += bytes;
+
+            Iterator<Entry> iterator = this.entries.values().iterator();
+
+            while (this.totalBytes > this.maxBytes && iterator.hasNext()) {
+                this.totalBytes -= iterator.next().bytes;
+
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return whether images are cached at all
+     */
+    boolean isEnabled() {
+        return this.maxBytes > 0;
+    }
+
+    /**
+     * @return the budget in bytes
+     */
+    long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+
+    /**
+     * @return the size of the cached images in bytes
+     */
+    public synchronized long getSize() {
+        purge();
+
+        return this.totalBytes;
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.totalBytes = 0;
+    }
+
+    private void remove(@NotNull Key key) {
+        Entry entry = this.entries.remove(key);
+
+        if (entry != null) {
+            this.totalBytes -= entry.bytes;
+        }
+    }
+
+    private void purge() {
+        Entry entry;
+
+        while ((entry = (Entry) this.collected.poll()) != null) {
+            // The key may already hold a newer entry
+            if (this.entries.get(entry.key) == entry) {
+                remove(entry.key);
+            }
+        }
+    }
+
+    /**
+     * Copies the image through {@link java.awt.image.WritableRaster#setRect}, which keeps the
+     * copy eligible for Java2D acceleration.
+     */
+    static @NotNull BufferedImage copy(@NotNull BufferedImage image) {
+        BufferedImage copy = new BufferedImage(
+                image.getColorModel(),
+                image.getRaster().createCompatibleWritableRaster(),
+                image.isAlphaPremultiplied(),
+                null
+        );
+
+        copy.getRaster().setRect(image.getRaster());
+
+        return copy;
+    }
+
+    private static long getSize(@NotNull BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        return (long) buffer.getSize() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static final class Entry extends SoftReference<BufferedImage> {
+
+        private final Key key;
+
+        private final long bytes;
+
+        Entry(@NotNull Key key, @NotNull BufferedImage image, long bytes, @NotNull ReferenceQueue<BufferedImage> queue) {
+            super(image, queue);
+
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+    }
+
+    /**
+     * A version of a file, and the layout it is decoded into.
+     */
+    static final class Key {
+
+        // File key of the file system, the absolute path if it has none, or the digest of a stream
+        private final Object file;
+
+        private final long modified;
+
+        private final long size;
+
+        private final boolean packed;
+
+        private final QOIColorSpace colorSpace;
+
+        private final int scale;
+
+        private Key(@NotNull Object file, long modified, long size, boolean packed, QOIColorSpace colorSpace, int scale) {
+            this.file = file;
+            this.modified = modified;
+            this.size = size;
+            this.packed = packed;
+            this.colorSpace = colorSpace;
+            this.scale = scale;
+        }
+
+        /**
+         * Reads the identity and modification time of {@code path}. Done before the file is read,
+         * a file changed in between is stored under its old time, which is never asked for again.
+         */
+        static @NotNull Key of(@NotNull Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            Object file = attributes.fileKey() != null ? attributes.fileKey() : path.toAbsolutePath().normalize();
+
+            return new Key(file, attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size(), false, null, 0);
+        }
+
+        /**
+         * Identifies an image read from a stream by its encoded bytes, such as the content of a
+         * file the IDE opens, through their SHA-256 digest and their length.
+         */
+        static @NotNull Key of(byte @NotNull [] content) {
+            MessageDigest digest;
+
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            // Compared by content
+            ByteBuffer file = ByteBuffer.wrap(digest.digest(content));
+
+            return new Key(file, 0, content.length, false, null, 0);
+        }
+
+        /**
+         * @return the modification time of the file in nanoseconds
+         */
+        long getModified() {
+            return this.modified;
+        }
+
+        @NotNull Key withLayout(boolean packed, @NotNull QOIColorSpace colorSpace, int scale) {
+            return new Key(this.file, this.modified, this.size, packed, colorSpace, scale);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return this.modified == key.modified &&
+                    this.size == key.size &&
+                    this.packed == key.packed &&
+                    this.scale == key.scale &&
+                    this.file.equals(key.file) &&
+                    this.colorSpace == key.colorSpace;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.file, this.modified, this.size, this.packed, this.colorSpace, this.scale);
+        }
+
+    }
+
+}
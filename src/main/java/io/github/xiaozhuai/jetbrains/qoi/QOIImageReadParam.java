@@ -0,0 +1,263 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import javax.imageio.ImageReadParam;
+import java.io.File;
+
+/**
+ * QOI specific read options, on top of the standard {@link ImageReadParam} ones.
+ */
+public final class QOIImageReadParam extends ImageReadParam {
+
+    /**
+     * Rows between two decoder checkpoints, see {@link #setCheckpointInterval(int)}.
+     * Can be changed with the {@code qoi.checkpointInterval} system property.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = Math.max(Integer.getInteger("qoi.checkpointInterval", 64), 0);
+
+    /**
+     * Images with at least this many pixels are decoded on several threads, see {@link #setParallelThreshold(long)}.
+     * Can be changed with the {@code qoi.parallelThreshold} system property.
+     */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = Math.max(Long.getLong("qoi.parallelThreshold", 4L * 1024 * 1024), 0);
+
+    /**
+     * Whether full reads produce packed int images, see {@link #setPackedPixels(boolean)}.
+     * Can be changed with the {@code qoi.packedPixels} system property.
+     */
+    public static final boolean DEFAULT_PACKED_PIXELS = Boolean.parseBoolean(System.getProperty("qoi.packedPixels", "false"));
+
+    /**
+     * Whether linear images are converted to sRGB, see {@link #setLinearToSRGB(boolean)}.
+     * Can be changed with the {@code qoi.linearToSRGB} system property.
+     */
+    public static final boolean DEFAULT_LINEAR_TO_SRGB = Boolean.parseBoolean(System.getProperty("qoi.linearToSRGB", "true"));
+
+    /**
+     * Largest image a full read allocates, in bytes, see {@link #setMemoryBudget(long)}.
+     * Can be changed with the {@code qoi.memoryBudget} system property, defaults to a quarter of the maximum heap.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = Math.max(Long.getLong("qoi.memoryBudget", Runtime.getRuntime().maxMemory() / 4), 1);
+
+    /**
+     * Width and height of the tiles of {@link QOIImageReader#readAsRenderedImage}, see {@link #setTileSize(int, int)}.
+     * Can be changed with the {@code qoi.tileSize} system property.
+     */
+    public static final int DEFAULT_TILE_SIZE = Math.max(Integer.getInteger("qoi.tileSize", 512), 1);
+
+    /**
+     * Rows decoded between two progress updates of a full read, see {@link #setUpdateRows(int)}.
+     * Can be changed with the {@code qoi.updateRows} system property.
+     */
+    public static final int DEFAULT_UPDATE_ROWS = Math.max(Integer.getInteger("qoi.updateRows", 256), 1);
+
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    private File checkpointFile;
+
+    private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private boolean packedPixels = DEFAULT_PACKED_PIXELS;
+
+    private boolean linearToSRGB = DEFAULT_LINEAR_TO_SRGB;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private int tileWidth = DEFAULT_TILE_SIZE;
+
+    private int tileHeight = DEFAULT_TILE_SIZE;
+
+    private int updateRows = DEFAULT_UPDATE_ROWS;
+
+    private boolean mipmaps;
+
+    private QOIBufferPool bufferPool;
+
+    private int level;
+
+    /**
+     * While decoding, the reader records its state every {@code rows} rows. Later region
+     * reads from the same input resume at the nearest checkpoint instead of decoding from
+     * the first pixel. Zero disables recording.
+     */
+    public void setCheckpointInterval(int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("rows < 0");
+        }
+
+        this.checkpointInterval = rows;
+    }
+
+    public int getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    /**
+     * Sidecar file holding the checkpoint index of the input. It is loaded if it exists
+     * and matches the image, otherwise it is written once the image was fully decoded.
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public File getCheckpointFile() {
+        return this.checkpointFile;
+    }
+
+    /**
+     * Full reads of images with at least {@code pixels} pixels are split into row segments
+     * that decode concurrently on the common {@link java.util.concurrent.ForkJoinPool}.
+     * The result is identical to a serial decode. {@link Long#MAX_VALUE} disables it.
+     */
+    public void setParallelThreshold(long pixels) {
+        if (pixels < 0) {
+            throw new IllegalArgumentException("pixels < 0");
+        }
+
+        this.parallelThreshold = pixels;
+    }
+
+    public long getParallelThreshold() {
+        return this.parallelThreshold;
+    }
+
+    /**
+     * Decodes sRGB images, and linear ones converted to sRGB, straight into {@link java.awt.image.BufferedImage#TYPE_INT_ARGB_PRE},
+     * or {@link java.awt.image.BufferedImage#TYPE_INT_RGB} if they have no alpha channel.
+     * Java2D draws these without any conversion, but premultiplying loses the color of
+     * translucent pixels. Disabled by default, pixels are then returned as interleaved
+     * RGB(A) bytes, exactly as they are stored in the file. Meant for code that only
+     * displays the image, like the thumbnails of the plugin.
+     * <p>
+     * Only applies when no destination or destination type is set.
+     */
+    public void setPackedPixels(boolean packedPixels) {
+        this.packedPixels = packedPixels;
+    }
+
+    public boolean isPackedPixels() {
+        return this.packedPixels;
+    }
+
+    /**
+     * Converts the samples of images stored as linear RGB to sRGB while decoding, through
+     * a 256 entry table. Drawing a {@code CS_LINEAR_RGB} image goes through a color
+     * conversion on every paint, drawing the converted image does not. The image metadata
+     * still reports the color space of the file.
+     * <p>
+     * Only applies when no destination or destination type is set, otherwise pixels are
+     * converted if the destination is sRGB.
+     */
+    public void setLinearToSRGB(boolean linearToSRGB) {
+        this.linearToSRGB = linearToSRGB;
+    }
+
+    public boolean isLinearToSRGB() {
+        return this.linearToSRGB;
+    }
+
+    /**
+     * Full reads of images that would take more than {@code bytes} bytes, or more than
+     * fit into a single array, return a preview reduced by the smallest integer factor
+     * that fits. Blocks of pixels are averaged while decoding, the full image is never
+     * held in memory. The image metadata of a reduced read holds a {@code QOIPreview} node.
+     * {@link Long#MAX_VALUE} only reduces images that do not fit into an array.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes <= 0");
+        }
+
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Size of the tiles {@link QOIImageReader#readAsRenderedImage} decodes into, limited to
+     * the size of the image. Every tile is backed by its own array.
+     */
+    public void setTileSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+
+        this.tileWidth = width;
+        this.tileHeight = height;
+    }
+
+    public int getTileWidth() {
+        return this.tileWidth;
+    }
+
+    public int getTileHeight() {
+        return this.tileHeight;
+    }
+
+    /**
+     * Full reads decode the image in bands of at most {@code rows} rows, top to bottom. After every
+     * band, update listeners get {@code imageUpdate} for its rows, progress listeners get
+     * {@code imageProgress}, and {@link javax.imageio.ImageReader#abort()} is checked, in
+     * which case the image decoded so far is returned. Parallel reads report each segment
+     * once all segments above it are done instead.
+     */
+    public void setUpdateRows(int rows) {
+        if (rows <= 0) {
+            throw new IllegalArgumentException("rows <= 0");
+        }
+
+        this.updateRows = rows;
+    }
+
+    public int getUpdateRows() {
+        return this.updateRows;
+    }
+
+    /**
+     * Takes the row buffers of reads from {@code pool} and returns them afterwards, instead of
+     * allocating them for every read. Together with a destination set through
+     * {@link #setDestination} that has the size and layout of a full read, which is then
+     * decoded into directly, reading many images of the same size allocates no pixel arrays.
+     * Null, the default, allocates the buffers.
+     */
+    public void setBufferPool(QOIBufferPool pool) {
+        this.bufferPool = pool;
+    }
+
+    public QOIBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Full reads also build the mipmap pyramid, in the same pass as the decode, so later
+     * thumbnail or level reads do not decode the image again. Images at least as large as
+     * the parallel threshold are then decoded on a single thread.
+     */
+    public void setMipmaps(boolean mipmaps) {
+        this.mipmaps = mipmaps;
+    }
+
+    public boolean isMipmaps() {
+        return this.mipmaps;
+    }
+
+    /**
+     * Reads level {@code level} of the mipmap pyramid instead of the image, that is the image
+     * reduced {@code 2^level} times with a box filter. Level {@code n} is thumbnail
+     * {@code n - 1}. Zero reads the image itself. Cannot be combined with a source region,
+     * subsampling, band selection or destination.
+     */
+    public void setLevel(int level) {
+        if (level < 0) {
+            throw new IllegalArgumentException("level < 0");
+        }
+
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+}
@@ -3,7 +3,6 @@ package io.github.xiaozhuai.jetbrains.qoi;
 import org.jetbrains.annotations.NotNull;
 import me.saharnooby.qoi.QOIColorSpace;
 import me.saharnooby.qoi.QOIImage;
-import me.saharnooby.qoi.QOIUtil;
 
 import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
@@ -11,40 +10,1113 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
-import java.io.IOException;
-import java.util.Collections;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static io.github.xiaozhuai.jetbrains.qoi.QOIPluginConstants.QOI_END_MARKER;
+
+/**
+ * Reads QOI images from an {@link ImageInputStream}, a {@code byte[]}, a {@link ByteBuffer},
+ * a {@link File} or {@link Path}, which is mapped, or a plain {@link InputStream}.
+ * <p>
+ * A plain {@link InputStream} is read forward only, exactly up to the end of the image,
+ * without any cache file or memory cache in between. Only a reader given the stream itself
+ * reads it that way:
+ * <pre>{@code
+ * ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+ * reader.setInput(inputStream);
+ * BufferedImage image = reader.read(0);
+ * }</pre>
+ * {@link javax.imageio.ImageIO#read(InputStream)} wraps the stream into a cached
+ * {@link ImageInputStream} before any reader sees it, and may still spill it to a temporary file.
+ */
+public final class QOIImageReader extends ImageReader {
+
+    static final int[] OFFSETS_3 = {0, 1, 2};
+    static final int[] OFFSETS_4 = {0, 1, 2, 3};
+
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // Set when the input is read as a stream
+    private ImageInputStream stream;
+
+    // Stream opened by the reader itself, closed with the input
+    private ImageInputStream ownedStream;
+
+    // The input is a plain InputStream, which can neither seek back nor read ahead
+    private boolean forwardOnly;
+
+    // Stream position of the QOI header
+    private long streamStart;
+
+    // Set when the input is held in memory or mapped, starting at the header
+    private ByteBuffer data;
+
+    // Version of a File or Path input, under which its decoded image is shared
+    private QOIImageCache.Key fileKey;
+
+    // Positioned at the first pixel, null once pixels were consumed
+    private QOIDecoder decoder;
+
+    private QOIHeader header;
+
+    private QOICheckpointIndex checkpoints;
+
+    private BufferedImage image;
+
+    // Factor the cached image was reduced by to fit into the memory budget
+    private int scale = 1;
+
+    private QOIPyramid pyramid;
+
+    // Whether a thumbnail is being decoded, its progress is reported as such
+    private boolean readingThumbnail;
+
+    // Chunk buffer of stream decoders, kept across inputs
+    private byte[] chunk;
+
+    QOIImageReader(@NotNull ImageReaderSpi originatingProvider) {
+        super(originatingProvider);
+    }
+
+    @Override
+    public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
+        super.setInput(input, seekForwardOnly, ignoreMetadata);
+
+        closeOwnedStream();
+
+        this.stream = null;
+        this.data = null;
+        this.fileKey = null;
+        this.forwardOnly = false;
+        this.decoder = null;
+        this.header = null;
+        this.checkpoints = null;
+        this.image = null;
+        this.scale = 1;
+        this.pyramid = null;
+    }
+
+    @Override
+    public ImageReadParam getDefaultReadParam() {
+        return new QOIImageReadParam();
+    }
+
+    private void readHeader() throws IOException {
+        if (this.header != null) {
+            return;
+        }
+
+        if (this.input == null) {
+            throw new IllegalStateException("Input not set");
+        }
+
+        openInput();
+
+        if (this.data != null) {
+            this.decoder = new QOIDecoder(this.data);
+            this.header = this.decoder.readHeader();
+
+            return;
+        }
+
+        ImageInputStream input = this.stream;
+
+        this.streamStart = input.getStreamPosition();
+
+        // The decoder never reads past the end marker,
+        // so additional data stored in the stream is preserved.
+        this.decoder = new QOIDecoder(input, getChunk());
+        this.header = this.decoder.readHeader();
+    }
+
+    private void openInput() throws IOException {
+        if (this.stream != null || this.data != null) {
+            return;
+        }
+
+        Object input = this.input;
+
+        if (input instanceof ImageInputStream) {
+            this.stream = (ImageInputStream) input;
+        } else if (input instanceof InputStream) {
+            // No cache in between, the decoder reads exactly the bytes of the image
+            this.stream = new ForwardOnlyImageInputStream((InputStream) input);
+            this.forwardOnly = true;
+        } else if (input instanceof byte[]) {
+            this.data = ByteBuffer.wrap((byte[]) input);
+        } else if (input instanceof ByteBuffer) {
+            // Decoders only use absolute reads, the caller's position is left untouched
+            this.data = ((ByteBuffer) input).duplicate();
+        } else {
+            Path path = input instanceof File ? ((File) input).toPath() : (Path) input;
+
+            this.fileKey = QOIImageCache.Key.of(path);
+            this.data = map(path);
+
+            if (this.data == null) {
+                this.ownedStream = new FileImageInputStream(path.toFile());
+                this.stream = this.ownedStream;
+            }
+        }
+    }
+
+    /**
+     * Maps the whole file into memory.
+     *
+     * @return the mapped file, or null if it is too large to be mapped at once
+     */
+    private static ByteBuffer map(@NotNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Only one stream decoder is in use at a time, a new one replaces any previous one.
+     */
+    private byte[] getChunk() {
+        if (this.chunk == null) {
+            this.chunk = new byte[QOIDecoder.CHUNK_SIZE];
+        }
+
+        return this.chunk;
+    }
+
+    private void closeOwnedStream() {
+        if (this.ownedStream == null) {
+            return;
+        }
+
+        try {
+            this.ownedStream.close();
+        } catch (IOException e) {
+            // Nothing was written, there is nothing to lose
+        }
+
+        this.ownedStream = null;
+    }
+
+    /**
+     * Returns a decoder positioned at the first pixel, seeking back to the header if
+     * the pixels were already consumed by a previous read.
+     */
+    private QOIDecoder takeDecoder() throws IOException {
+        readHeader();
+
+        QOIDecoder decoder = this.decoder;
+
+        if (decoder == null) {
+            if (this.forwardOnly) {
+                throw new IIOException("The pixels of an InputStream input can only be read once");
+            }
+
+            if (this.data != null) {
+                decoder = new QOIDecoder(this.data);
+            } else {
+                this.stream.seek(this.streamStart);
+
+                decoder = new QOIDecoder(this.stream, getChunk());
+            }
+
+            decoder.readHeader();
+        }
+
+        this.decoder = null;
+
+        return decoder;
+    }
+
+    private void prepareCheckpoints(@NotNull QOIImageReadParam param) throws IOException {
+        if (this.checkpoints != null) {
+            return;
+        }
+
+        File file = param.getCheckpointFile();
+
+        // A loaded index could neither be verified nor used to seek in a forward-only input
+        if (file != null && file.isFile() && !this.forwardOnly) {
+            this.checkpoints = loadCheckpoints(file);
+        }
+
+        if (this.checkpoints == null && param.getCheckpointInterval() > 0) {
+            this.checkpoints = new QOICheckpointIndex(this.header.width, this.header.height, param.getCheckpointInterval());
+        }
+    }
+
+    /**
+     * Loads the checkpoint file if it was recorded from this version of the image: a file input
+     * with the same modification time, or an input whose encoded bytes have the same digest.
+     * A stale or damaged file is ignored, the image is then decoded from the start and the
+     * file written again.
+     */
+    private QOICheckpointIndex loadCheckpoints(@NotNull File file) throws IOException {
+        QOICheckpointIndex checkpoints;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            checkpoints = QOICheckpointIndex.read(in, this.header);
+        } catch (IOException e) {
+            processWarningOccurred("Ignoring unreadable checkpoint file " + file + ": " + e.getMessage());
+
+            return null;
+        }
+
+        if (checkpoints == null) {
+            processWarningOccurred("Ignoring invalid checkpoint file " + file);
+
+            return null;
+        }
+
+        // The indexed length has to end with the end marker
+        byte[] marker = readInput(checkpoints.getLength() - QOI_END_MARKER.length, QOI_END_MARKER.length);
+
+        if (marker == null || !Arrays.equals(marker, QOI_END_MARKER)) {
+            return null;
+        }
+
+        if (this.fileKey != null && this.fileKey.getModified() == checkpoints.getModified()) {
+            return checkpoints;
+        }
+
+        // Another input, or the file was touched since, compare the content
+        if (!Arrays.equals(digest(checkpoints.getLength()), checkpoints.getDigest())) {
+            processWarningOccurred("Ignoring checkpoint file " + file + " recorded from another version of the image");
+
+            return null;
+        }
+
+        return checkpoints;
+    }
+
+    private void saveCheckpoints(@NotNull QOIImageReadParam param) throws IOException {
+        File file = param.getCheckpointFile();
+
+        if (file == null) {
+            return;
+        }
+
+        byte[] digest = digest(this.checkpoints.getLength());
+
+        if (digest == null) {
+            // A forward-only input cannot be read again
+            return;
+        }
+
+        this.checkpoints.setSource(this.fileKey != null ? this.fileKey.getModified() : -1, digest);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            this.checkpoints.write(out);
+        } catch (IOException e) {
+            processWarningOccurred("Failed to write checkpoint file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the SHA-256 digest of the first {@code length} bytes of the image, or null if the
+     * input is shorter or cannot be read again
+     */
+    private byte[] digest(long length) throws IOException {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (this.data != null) {
+            if (length > this.data.remaining()) {
+                return null;
+            }
+
+            ByteBuffer data = this.data.duplicate();
+            data.limit(data.position() + (int) length);
+
+            digest.update(data);
+
+            return digest.digest();
+        }
+
+        if (this.forwardOnly) {
+            return null;
+        }
+
+        ImageInputStream input = this.stream;
+
+        long position = input.getStreamPosition();
+
+        // The chunk buffer may still hold data of the current decoder
+        byte[] buffer = new byte[QOIDecoder.CHUNK_SIZE];
+
+        try {
+            input.seek(this.streamStart);
+
+            for (long left = length; left > 0; ) {
+                int n = (int) Math.min(left, buffer.length);
+
+                input.readFully(buffer, 0, n);
+                digest.update(buffer, 0, n);
+
+                left -= n;
+            }
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            input.seek(position);
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * @return {@code length} bytes of the image at {@code offset}, or null if the input is shorter
+     */
+    private byte[] readInput(long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+
+        if (this.data != null) {
+            if (offset < 0 || offset + length > this.data.remaining()) {
+                return null;
+            }
+
+            this.data.get(this.data.position() + (int) offset, bytes);
+
+            return bytes;
+        }
+
+        ImageInputStream input = this.stream;
+
+        long position = input.getStreamPosition();
+
+        try {
+            input.seek(this.streamStart + offset);
+            input.readFully(bytes);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            input.seek(position);
+        }
+
+        return bytes;
+    }
+
+    private void recordCheckpoint(@NotNull QOIDecoder decoder, int y) {
+        if (this.checkpoints != null && this.checkpoints.isNext(y)) {
+            decoder.saveCheckpoint(this.checkpoints);
+        }
+    }
+
+    /**
+     * Advances the decoder from the start of row {@code from} to the start of row {@code to}.
+     */
+    private void skipRows(@NotNull QOIDecoder decoder, int from, int to) throws IOException {
+        int width = this.header.width;
+
+        for (int y = from; y < to; ) {
+            recordCheckpoint(decoder, y);
+
+            int next = to;
+
+            if (this.checkpoints != null) {
+                int interval = this.checkpoints.getInterval();
+
+                next = Math.min(to, (y / interval + 1) * interval);
+            }
+
+            decoder.skipPixels((long) (next - y) * width);
+
+            y = next;
+        }
+    }
+
+    /**
+     * Decodes the whole image on the common {@link ForkJoinPool} if it is large enough,
+     * reporting rows of {@code image}, if any, as segments complete.
+     *
+     * @return false if the image has to be decoded serially instead
+     */
+    private boolean readParallel(@NotNull QOIRowSink sink, BufferedImage image, @NotNull QOIImageReadParam param) throws IOException {
+        QOIHeader header = this.header;
+
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+
+        // A forward-only input cannot be read ahead without losing the data after the image
+        if (parallelism <= 1 || header.getPixelCount() < param.getParallelThreshold() || this.forwardOnly) {
+            return false;
+        }
+
+        ByteBuffer data = this.data;
+
+        if (data == null) {
+            // Workers need random access to the encoded data
+            this.stream.seek(this.streamStart);
+
+            byte[] bytes = readFully(this.stream, MAX_ARRAY_SIZE);
+
+            if (bytes == null) {
+                this.stream.seek(this.streamStart + QOIHeader.SIZE);
+
+                return false;
+            }
+
+            data = ByteBuffer.wrap(bytes);
+        }
+
+        QOICheckpointIndex checkpoints = this.checkpoints;
+
+        if (checkpoints == null) {
+            int interval = QOIParallelDecoder.getSegmentRows(header.height, 1, parallelism);
+
+            checkpoints = new QOICheckpointIndex(header.width, header.height, interval);
+        }
+
+        boolean complete = checkpoints.isComplete();
+
+        QOIParallelDecoder.Listener listener = (y, rows) -> reportRows(image, y, rows, header.height);
+
+        if (!new QOIParallelDecoder(data, header, checkpoints).decode(sink, ForkJoinPool.commonPool(), listener)) {
+            // Aborted, the checkpoints recorded so far stay valid
+            return true;
+        }
+
+        if (this.stream != null) {
+            // Leave the stream right after the image, as the serial decoder does
+            this.stream.seek(this.streamStart + checkpoints.getLength());
+        }
+
+        if (!complete && checkpoints == this.checkpoints) {
+            saveCheckpoints(param);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the rest of the stream, unless it is longer than {@code limit} bytes.
+     *
+     * @return the bytes read, or null if there are more than {@code limit} or they do not fit into an array
+     */
+    private static byte[] readFully(@NotNull ImageInputStream input, long limit) throws IOException {
+        long length = input.length();
+
+        limit = Math.min(limit, MAX_ARRAY_SIZE);
+
+        if (length >= 0) {
+            long size = length - input.getStreamPosition();
+
+            if (size > limit) {
+                return null;
+            }
+
+            byte[] data = new byte[(int) size];
+
+            input.readFully(data);
+
+            return data;
+        }
+
+        byte[] data = new byte[(int) Math.min(64 * 1024, limit)];
+        int size = 0;
+
+        while (true) {
+            if (size == data.length) {
+                if (size >= limit) {
+                    // Unless the stream ends right here
+                    return input.read() < 0 ? Arrays.copyOf(data, size) : null;
+                }
+
+                data = Arrays.copyOf(data, (int) Math.min((long) size * 2, limit));
+            }
+
+            int n = input.read(data, size, data.length - size);
+
+            if (n < 0) {
+                return Arrays.copyOf(data, size);
+            }
+
+            size += n;
+        }
+    }
+
+    /**
+     * Decodes the image for a read with default settings, or returns the cached one.
+     * The image of an aborted read is returned but not cached.
+     */
+    private BufferedImage readImage(@NotNull QOIImageReadParam param) throws IOException {
+        readHeader();
+
+        QOIColorSpace colorSpace = getColorSpace(param);
+        boolean packed = isPacked(param);
+        int scale = getScale(param, packed, false);
+
+        // A cached image in another layout, color space or size is decoded again, if the input allows it
+        if (this.image != null && (isPacked(this.image) == packed && getColorSpace(this.image) == colorSpace && this.scale == scale || this.forwardOnly)) {
+            return this.image;
+        }
+
+        // The pyramid needs the rows in order, it is never built by the parallel decoder
+        QOIPyramid pyramid = param.isMipmaps() && this.pyramid == null ? createPyramid(param) : null;
+
+        // Reduced previews are not cached
+        QOIImageCache.Key key = scale == 1 ? this.fileKey : null;
+
+        // Streams, such as the ones the IDE opens over files, are identified by their content.
+        // Only streams that fit into both budgets are loaded into memory to compute it.
+        if (key == null && scale == 1 && this.stream != null && !this.forwardOnly && QOIImageCache.getInstance().isEnabled()) {
+            key = loadStream(Math.min(QOIImageCache.getInstance().getMaxBytes(), param.getMemoryBudget()));
+        }
+
+        if (key != null) {
+            key = key.withLayout(packed, colorSpace, scale);
+        }
+
+        // Only a decode builds the pyramid and writes the checkpoint file
+        if (key != null && pyramid == null && param.getCheckpointFile() == null) {
+            BufferedImage cached = QOIImageCache.getInstance().get(key);
+
+            if (cached != null) {
+                this.image = cached;
+                this.scale = scale;
+
+                return cached;
+            }
+        }
+
+        QOIDecoder decoder = takeDecoder();
+
+        QOIHeader header = this.header;
+
+        prepareCheckpoints(param);
+
+        int width = QOIBoxFilter.getReducedSize(header.width, scale);
+        int height = QOIBoxFilter.getReducedSize(header.height, scale);
+        int channels = header.channels;
+
+        byte[] colorTable = getColorTable(colorSpace);
+
+        BufferedImage image;
+        QOIRowSink sink;
+
+        if (packed) {
+            image = new BufferedImage(width, height, header.hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+            sink = QOIRowSink.of(image.getRaster(), header.hasAlpha(), colorTable, param.getBufferPool());
+        } else {
+            byte[] pixelData = new byte[width * height * channels];
+
+            image = createBufferedImage(pixelData, width, height, channels, colorSpace);
+            sink = QOIRowSink.of(pixelData, width, channels, colorTable);
+        }
+
+        if (scale > 1 || pyramid != null) {
+            WritableRaster raster = image.getRaster();
+
+            if (!readRows(decoder, scale, packed, colorTable, pyramid, image, param, (y, row) -> raster.setDataElements(0, y, width, 1, row))) {
+                return image;
+            }
+
+            finish(decoder, param);
+
+            if (pyramid != null) {
+                this.pyramid = pyramid;
+            }
+        } else if (!readBands(decoder, sink, image, param)) {
+            return image;
+        }
+
+        // Data after the image in the stream would not be skipped by a later hit
+        if (key != null && (this.fileKey != null || this.stream.getStreamPosition() == this.streamStart + this.data.limit())) {
+            QOIImageCache.getInstance().put(key, image);
+        }
+
+        this.image = image;
+        this.scale = scale;
+
+        return image;
+    }
+
+    /**
+     * Reads the rest of the stream into memory, from where the image is decoded from now on.
+     *
+     * @return the key of the content, or null if it is longer than {@code limit} bytes
+     */
+    private QOIImageCache.Key loadStream(long limit) throws IOException {
+        this.stream.seek(this.streamStart);
+
+        byte[] bytes = readFully(this.stream, limit);
+
+        // Either way the next decoder starts over from the header
+        this.decoder = null;
+
+        if (bytes == null) {
+            return null;
+        }
+
+        this.data = ByteBuffer.wrap(bytes);
+
+        return QOIImageCache.Key.of(bytes);
+    }
+
+    /**
+     * Decodes the whole image into {@code sink}, on several threads if it is large enough,
+     * reporting the rows of {@code image} the sink writes into, if any.
+     *
+     * @return false if the read was aborted
+     */
+    private boolean readBands(@NotNull QOIDecoder decoder,
+                              @NotNull QOIRowSink sink,
+                              BufferedImage image,
+                              @NotNull QOIImageReadParam param) throws IOException {
+        if (readParallel(sink, image, param)) {
+            return !abortRequested();
+        }
+
+        int height = this.header.height;
+
+        for (int y = 0; y < height; ) {
+            recordCheckpoint(decoder, y);
+
+            // Bands end at every checkpoint, where the decoder state is recorded
+            int next = Math.min(y + param.getUpdateRows(), height);
+
+            if (this.checkpoints != null) {
+                next = Math.min(next, (y / this.checkpoints.getInterval() + 1) * this.checkpoints.getInterval());
+            }
+
+            sink.readRows(decoder, y, next - y);
+
+            if (!reportRows(image, y, next - y, height)) {
+                return false;
+            }
+
+            y = next;
+        }
+
+        finish(decoder, param);
+
+        return true;
+    }
+
+    /**
+     * Returns a sink decoding straight into {@code dest}, if it has the size of the image and one of
+     * the layouts of a full read: {@code TYPE_INT_ARGB_PRE} or {@code TYPE_INT_RGB} matching the alpha
+     * channel, or interleaved RGB(A) bytes.
+     *
+     * @return the sink, or null if the destination has any other layout
+     */
+    private QOIRowSink getDirectSink(@NotNull BufferedImage dest, @NotNull QOIImageReadParam param) {
+        QOIHeader header = this.header;
+
+        if (dest.getWidth() != header.width || dest.getHeight() != header.height) {
+            return null;
+        }
+
+        boolean alpha = header.hasAlpha();
+
+        // Linear samples are converted when the destination is sRGB, as by any other read
+        byte[] colorTable = dest.getColorModel().getColorSpace().isCS_sRGB() ? getColorTable(QOIColorSpace.SRGB) : null;
+
+        if (dest.getType() == (alpha ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB)) {
+            return QOIRowSink.of(dest.getRaster(), alpha, colorTable, param.getBufferPool());
+        }
+
+        WritableRaster raster = dest.getRaster();
+        ColorModel colorModel = dest.getColorModel();
+
+        if (!(colorModel instanceof ComponentColorModel) ||
+                colorModel.hasAlpha() != alpha ||
+                colorModel.isAlphaPremultiplied() ||
+                !(raster.getSampleModel() instanceof PixelInterleavedSampleModel) ||
+                !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return null;
+        }
+
+        PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+
+        int channels = header.channels;
+
+        for (int size : model.getSampleSize()) {
+            if (size != 8) {
+                return null;
+            }
+        }
+
+        if (model.getPixelStride() != channels ||
+                model.getScanlineStride() != header.width * channels ||
+                !Arrays.equals(model.getBandOffsets(), alpha ? OFFSETS_4 : OFFSETS_3) ||
+                buffer.getNumBanks() != 1 ||
+                buffer.getOffset() != 0 ||
+                raster.getSampleModelTranslateX() != 0 ||
+                raster.getSampleModelTranslateY() != 0) {
+            return null;
+        }
+
+        return QOIRowSink.of(buffer.getData(), header.width, channels, colorTable);
+    }
+
+    /**
+     * @return the smallest factor the image has to be reduced by to fit into the memory budget, and into
+     * a single array unless it is {@code tiled}
+     */
+    private int getScale(@NotNull QOIImageReadParam param, boolean packed, boolean tiled) {
+        QOIHeader header = this.header;
+
+        int bytesPerPixel = packed ? 4 : header.channels;
+        long maxPixels = tiled ? Long.MAX_VALUE : MAX_ARRAY_SIZE / (packed ? 1 : header.channels);
+
+        int scale = 1;
+
+        while (true) {
+            long pixels = (long) QOIBoxFilter.getReducedSize(header.width, scale) * QOIBoxFilter.getReducedSize(header.height, scale);
+
+            if (pixels == 1 || pixels * bytesPerPixel <= param.getMemoryBudget() && pixels <= maxPixels) {
+                break;
+            }
+
+            scale++;
+        }
+
+        if (scale > 1) {
+            processWarningOccurred("A " + header.width + "x" + header.height + " image exceeds the memory budget, reading a preview reduced " + scale + " times");
+        }
+
+        return scale;
+    }
+
+    /**
+     * Checks the end of the image and completes the checkpoint index.
+     */
+    private void finish(@NotNull QOIDecoder decoder, @NotNull QOIImageReadParam param) throws IOException {
+        decoder.finish();
+
+        if (this.stream != null && this.data != null) {
+            // Decoded from the loaded stream, leave the stream right after the image
+            this.stream.seek(this.streamStart + decoder.getOffset());
+        }
+
+        if (this.checkpoints != null && !this.checkpoints.isComplete()) {
+            this.checkpoints.complete(decoder.getOffset());
+
+            saveCheckpoints(param);
+        }
+    }
+
+    /**
+     * Receives the rows of a sequential read, as arrays in the layout of the output image.
+     */
+    @FunctionalInterface
+    private interface RowTarget {
+
+        void setRow(int y, @NotNull Object row);
+
+    }
+
+    /**
+     * Decodes the whole image a row at a time into {@code target}, as packed ints or interleaved bytes.
+     * If {@code scale > 1}, every output row holds the averages of {@code scale x scale} blocks.
+     * Rows of the file are also added to {@code pyramid} unless it is null. Every
+     * {@link QOIImageReadParam#getUpdateRows()} output rows are reported, as rows of {@code image}
+     * unless it is null.
+     *
+     * @return false if the read was aborted
+     */
+    private boolean readRows(@NotNull QOIDecoder decoder,
+                             int scale,
+                             boolean packed,
+                             byte[] colorTable,
+                             QOIPyramid pyramid,
+                             BufferedImage image,
+                             @NotNull QOIImageReadParam param,
+                             @NotNull RowTarget target) throws IOException {
+        QOIHeader header = this.header;
+
+        int width = header.width;
+        int channels = header.channels;
+        boolean alpha = header.hasAlpha();
+
+        QOIBoxFilter filter = scale > 1 ? new QOIBoxFilter(width, channels, scale) : null;
+
+        int outputWidth = QOIBoxFilter.getReducedSize(width, scale);
+        int outputHeight = QOIBoxFilter.getReducedSize(header.height, scale);
+
+        // Reducing the image and building the pyramid need the samples of the file
+        boolean raw = filter != null || pyramid != null;
+
+        QOIBufferPool pool = param.getBufferPool();
+
+        byte[] row = raw || !packed ? QOIBufferPool.allocateBytes(pool, width * channels) : null;
+        int[] rgba = raw || packed ? QOIBufferPool.allocateInts(pool, width) : null;
+        byte[] bytes = raw && !packed ? QOIBufferPool.allocateBytes(pool, outputWidth * channels) : row;
+
+        int updateRows = param.getUpdateRows();
+
+        try {
+            // Output rows reported so far
+            int reported = 0;
+
+            for (int y = 0; y < header.height; y++) {
+                recordCheckpoint(decoder, y);
+
+                int outputY;
+
+                if (!raw) {
+                    if (packed) {
+                        decoder.readPixels(rgba, 0, width, alpha, colorTable);
+                    } else {
+                        decoder.readPixels(row, 0, width, channels, colorTable);
+                    }
+
+                    target.setRow(y, packed ? rgba : row);
+
+                    outputY = y;
+                } else {
+                    // Averaged in the color space of the file, which is the right one for linear images
+                    decoder.readPixels(row, 0, width, channels, null);
+
+                    if (pyramid != null) {
+                        pyramid.addRow(row, 0);
+                    }
+
+                    if (filter == null) {
+                        pack(row, 0, rgba, width, channels);
+
+                        outputY = y;
+                    } else {
+                        filter.addRow(row, 0);
+
+                        if ((y + 1) % scale != 0 && y != header.height - 1) {
+                            continue;
+                        }
+
+                        filter.readRow(rgba);
+
+                        outputY = y / scale;
+                    }
+
+                    if (packed) {
+                        toPacked(rgba, outputWidth, colorTable);
+
+                        target.setRow(outputY, rgba);
+                    } else {
+                        unpack(rgba, bytes, outputWidth, channels, colorTable);
+
+                        target.setRow(outputY, bytes);
+                    }
+                }
+
+                if (outputY + 1 - reported == updateRows || outputY + 1 == outputHeight) {
+                    if (!reportRows(image, reported, outputY + 1 - reported, outputHeight)) {
+                        return false;
+                    }
+
+                    reported = outputY + 1;
+                }
+            }
+
+            return true;
+        } finally {
+            QOIBufferPool.free(pool, row);
+            QOIBufferPool.free(pool, rgba);
+
+            if (bytes != row) {
+                QOIBufferPool.free(pool, bytes);
+            }
+        }
+    }
+
+    /**
+     * Reports rows {@code [y, y + rows)} of an image {@code height} rows high as decoded,
+     * as an update of {@code image} unless it is null.
+     *
+     * @return false if the read was aborted
+     */
+    private boolean reportRows(BufferedImage image, int y, int rows, int height) {
+        if (image != null) {
+            processImageUpdate(image, 0, y, image.getWidth(), rows, 1, 1, getBands(image));
+        }
+
+        if (this.readingThumbnail) {
+            processThumbnailProgress((y + rows) * 100F / height);
+        } else {
+            processImageProgress((y + rows) * 100F / height);
+        }
+
+        return !abortRequested();
+    }
+
+    private static int[] getBands(@NotNull BufferedImage image) {
+        int[] bands = new int[image.getSampleModel().getNumBands()];
+
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = i;
+        }
+
+        return bands;
+    }
+
+    private QOIPyramid createPyramid(@NotNull QOIImageReadParam param) {
+        return new QOIPyramid(this.header.width, this.header.height, this.header.channels, param.getMemoryBudget());
+    }
+
+    /**
+     * Returns the mipmap pyramid, decoding the image once to build it if no full read did.
+     */
+    private QOIPyramid getPyramid(@NotNull QOIImageReadParam param) throws IOException {
+        readHeader();
+
+        if (this.pyramid != null) {
+            return this.pyramid;
+        }
+
+        QOIDecoder decoder = takeDecoder();
+
+        prepareCheckpoints(param);
+
+        QOIHeader header = this.header;
+
+        QOIPyramid pyramid = createPyramid(param);
+
+        byte[] row = new byte[header.width * header.channels];
+
+        for (int y = 0; y < header.height; y++) {
+            recordCheckpoint(decoder, y);
+
+            decoder.readPixels(row, 0, header.width, header.channels, null);
+
+            pyramid.addRow(row, 0);
+        }
+
+        finish(decoder, param);
+
+        this.pyramid = pyramid;
+
+        return pyramid;
+    }
 
-public final class QOIImageReader extends ImageReader {
+    /**
+     * Converts a level of the pyramid to the layout and color space of a full read with {@code param}.
+     */
+    private BufferedImage createLevelImage(@NotNull QOIPyramid pyramid, int level, @NotNull QOIImageReadParam param) throws IOException {
+        byte[] data = pyramid.getLevel(level);
 
-    static final int[] OFFSETS_3 = {0, 1, 2};
-    static final int[] OFFSETS_4 = {0, 1, 2, 3};
+        if (data == null) {
+            throw new IIOException("Mipmap level " + level + " exceeds the memory budget");
+        }
 
-    private QOIImage image;
+        int width = pyramid.getWidth(level);
+        int height = pyramid.getHeight(level);
+        int channels = this.header.channels;
 
-    QOIImageReader(@NotNull ImageReaderSpi originatingProvider) {
-        super(originatingProvider);
+        QOIColorSpace colorSpace = getColorSpace(param);
+        byte[] colorTable = getColorTable(colorSpace);
+
+        if (isPacked(param)) {
+            BufferedImage image = new BufferedImage(width, height, this.header.hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+
+            WritableRaster raster = image.getRaster();
+
+            int[] rgba = new int[width];
+
+            for (int y = 0; y < height; y++) {
+                pack(data, y * width * channels, rgba, width, channels);
+                toPacked(rgba, width, colorTable);
+
+                raster.setDataElements(0, y, width, 1, rgba);
+            }
+
+            return image;
+        }
+
+        // The level stays cached, callers get their own copy
+        byte[] pixelData = data.clone();
+
+        if (colorTable != null) {
+            for (int i = 0; i < pixelData.length; i++) {
+                if (channels == 3 || i % 4 != 3) {
+                    pixelData[i] = colorTable[pixelData[i] & 0xff];
+                }
+            }
+        }
+
+        return createBufferedImage(pixelData, width, height, channels, colorSpace);
     }
 
-    private void readImage() throws IOException {
-        if (this.image != null) {
-            return;
+    /**
+     * Converts {@code 0xRRGGBBAA} pixels to the packed type of a full read, mapping color samples
+     * through {@code colorTable} unless it is null.
+     */
+    private void toPacked(int @NotNull [] rgba, int count, byte[] colorTable) {
+        boolean alpha = this.header.hasAlpha();
+
+        for (int x = 0; x < count; x++) {
+            int px = QOIDecoder.map(rgba[x], colorTable);
+
+            rgba[x] = alpha ? QOIDecoder.toArgbPre(px) : px >>> 8;
         }
+    }
 
-        if (this.input == null) {
-            throw new IllegalStateException("Input not set");
+    /**
+     * Converts interleaved RGB(A) bytes starting at {@code offset} to {@code 0xRRGGBBAA} pixels.
+     */
+    private static void pack(byte @NotNull [] row, int offset, int @NotNull [] rgba, int count, int channels) {
+        for (int x = 0, i = offset; x < count; x++, i += channels) {
+            rgba[x] = (row[i] & 0xff) << 24 |
+                    (row[i + 1] & 0xff) << 16 |
+                    (row[i + 2] & 0xff) << 8 |
+                    (channels == 4 ? row[i + 3] & 0xff : 0xff);
         }
+    }
+
+    /**
+     * Color space of the images returned for {@code param} without a destination.
+     */
+    private QOIColorSpace getColorSpace(@NotNull QOIImageReadParam param) {
+        return param.isLinearToSRGB() ? QOIColorSpace.SRGB : this.header.colorSpace;
+    }
+
+    private static QOIColorSpace getColorSpace(@NotNull BufferedImage image) {
+        return image.getColorModel().getColorSpace().isCS_sRGB() ? QOIColorSpace.SRGB : QOIColorSpace.LINEAR;
+    }
 
-        ImageInputStream input = (ImageInputStream) this.input;
+    /**
+     * Packed images are only produced for sRGB, the color space of the packed image types.
+     */
+    private boolean isPacked(@NotNull QOIImageReadParam param) {
+        return param.isPackedPixels() && getColorSpace(param) == QOIColorSpace.SRGB;
+    }
+
+    private static boolean isPacked(@NotNull BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof DataBufferInt;
+    }
 
-        // This assumes that no additional data is stored in the
-        // stream, otherwise buffering will corrupt the stream.
-        this.image = QOIUtil.readImage(new WrappedImageInputStream(input));
+    /**
+     * @return the table mapping samples of the file to {@code colorSpace}, or null if they are kept as they are
+     */
+    private byte[] getColorTable(@NotNull QOIColorSpace colorSpace) {
+        return colorSpace != this.header.colorSpace ? QOIDecoder.LinearToSRGB.TABLE : null;
     }
 
     private void checkIndex(int imageIndex) {
@@ -62,49 +1134,314 @@ public final class QOIImageReader extends ImageReader {
     public int getWidth(int imageIndex) throws IOException {
         checkIndex(imageIndex);
 
-        readImage();
+        readHeader();
 
-        return this.image.getWidth();
+        return this.header.width;
     }
 
     @Override
     public int getHeight(int imageIndex) throws IOException {
         checkIndex(imageIndex);
 
-        readImage();
+        readHeader();
 
-        return this.image.getHeight();
+        return this.header.height;
     }
 
     @Override
     public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
-        readImage();
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return getImageTypes(new QOIImageReadParam());
+    }
+
+    /**
+     * The type of the image a full read with {@code param} returns comes first, the raw type last.
+     */
+    private Iterator<ImageTypeSpecifier> getImageTypes(@NotNull QOIImageReadParam param) {
+        List<ImageTypeSpecifier> types = new ArrayList<>(3);
+
+        QOIColorSpace colorSpace = getColorSpace(param);
+
+        if (isPacked(param)) {
+            types.add(ImageTypeSpecifier.createFromBufferedImageType(
+                    this.header.hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB
+            ));
+        }
+
+        if (colorSpace != this.header.colorSpace) {
+            types.add(createInterleavedType(colorSpace));
+        }
+
+        types.add(getRawImageType());
+
+        return types.iterator();
+    }
 
-        boolean hasAlpha = this.image.getChannels() == 4;
+    @Override
+    public ImageTypeSpecifier getRawImageType(int imageIndex) throws IOException {
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return getRawImageType();
+    }
+
+    /**
+     * Interleaved RGB(A) bytes, the layout of the pixels in the file.
+     */
+    private ImageTypeSpecifier getRawImageType() {
+        return createInterleavedType(this.header.colorSpace);
+    }
 
-        ColorSpace colorSpace = getAwtColorSpace(this.image.getColorSpace());
+    private ImageTypeSpecifier createInterleavedType(@NotNull QOIColorSpace colorSpace) {
+        boolean hasAlpha = this.header.hasAlpha();
 
-        ImageTypeSpecifier type = ImageTypeSpecifier.createInterleaved(
-                colorSpace,
+        return ImageTypeSpecifier.createInterleaved(
+                getAwtColorSpace(colorSpace),
                 hasAlpha ? OFFSETS_4 : OFFSETS_3,
                 DataBuffer.TYPE_BYTE,
                 hasAlpha,
                 false
         );
+    }
+
+    @Override
+    public boolean isImageTiled(int imageIndex) throws IOException {
+        return getTileWidth(imageIndex) < this.header.width || getTileHeight(imageIndex) < this.header.height;
+    }
+
+    /**
+     * Width of the tiles of {@link #readAsRenderedImage} with the default tile size.
+     */
+    @Override
+    public int getTileWidth(int imageIndex) throws IOException {
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return Math.min(QOIImageReadParam.DEFAULT_TILE_SIZE, this.header.width);
+    }
+
+    /**
+     * Height of the tiles of {@link #readAsRenderedImage} with the default tile size.
+     */
+    @Override
+    public int getTileHeight(int imageIndex) throws IOException {
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return Math.min(QOIImageReadParam.DEFAULT_TILE_SIZE, this.header.height);
+    }
+
+    /**
+     * Reads the pixels of one tile of the default tile size, resuming at the nearest checkpoint.
+     */
+    @Override
+    public BufferedImage readTile(int imageIndex, int tileX, int tileY) throws IOException {
+        int tileWidth = getTileWidth(imageIndex);
+        int tileHeight = getTileHeight(imageIndex);
+
+        Rectangle bounds = new Rectangle(tileX * tileWidth, tileY * tileHeight, tileWidth, tileHeight)
+                .intersection(new Rectangle(0, 0, this.header.width, this.header.height));
+
+        if (tileX < 0 || tileY < 0 || bounds.isEmpty()) {
+            throw new IllegalArgumentException("Tile index out of bounds: " + tileX + ", " + tileY);
+        }
+
+        ImageReadParam param = getDefaultReadParam();
+        param.setSourceRegion(bounds);
+
+        return read(imageIndex, param);
+    }
+
+    /**
+     * Without a region, subsampling, band selection or destination in {@code param}, decodes
+     * the image into tiles of {@link QOIImageReadParam#getTileWidth()} by
+     * {@link QOIImageReadParam#getTileHeight()} pixels, each backed by its own array.
+     * Images past the size of a single array can be read this way, as long as they fit
+     * into the memory budget. Anything else is read like {@link #read(int, ImageReadParam)}.
+     * An aborted read returns the image with the rows not yet decoded left zero.
+     */
+    @Override
+    public RenderedImage readAsRenderedImage(int imageIndex, ImageReadParam param) throws IOException {
+        if (param != null && (!ImageParamUtil.isDefault(param) || param instanceof QOIImageReadParam && ((QOIImageReadParam) param).getLevel() > 0)) {
+            return read(imageIndex, param);
+        }
+
+        checkIndex(imageIndex);
+
+        clearAbortRequest();
+
+        processImageStarted(imageIndex);
+
+        QOIImageReadParam qoiParam = param instanceof QOIImageReadParam ? (QOIImageReadParam) param : new QOIImageReadParam();
+
+        QOIDecoder decoder = takeDecoder();
+
+        QOIHeader header = this.header;
+
+        prepareCheckpoints(qoiParam);
+
+        QOIColorSpace colorSpace = getColorSpace(qoiParam);
+        boolean packed = isPacked(qoiParam);
+        int scale = getScale(qoiParam, packed, true);
+
+        int width = QOIBoxFilter.getReducedSize(header.width, scale);
+        int height = QOIBoxFilter.getReducedSize(header.height, scale);
+
+        ColorModel colorModel = getImageTypes(qoiParam).next().getColorModel();
+
+        QOITiledImage image = new QOITiledImage(
+                width,
+                height,
+                Math.min(qoiParam.getTileWidth(), width),
+                Math.min(qoiParam.getTileHeight(), height),
+                colorModel
+        );
+
+        if (!readRows(decoder, scale, packed, getColorTable(colorSpace), null, null, qoiParam, image::setRow)) {
+            processReadAborted();
+
+            return image;
+        }
+
+        finish(decoder, qoiParam);
+
+        processImageComplete();
+
+        return image;
+    }
+
+    @Override
+    public boolean readerSupportsThumbnails() {
+        return true;
+    }
+
+    /**
+     * Thumbnail {@code n} is the image reduced {@code 2^(n + 1)} times, down to a single pixel,
+     * the same size as level {@code n + 1} of the mipmap pyramid.
+     */
+    @Override
+    public boolean hasThumbnails(int imageIndex) throws IOException {
+        return getNumThumbnails(imageIndex) > 0;
+    }
+
+    @Override
+    public int getNumThumbnails(int imageIndex) throws IOException {
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return QOIPyramid.getLevelCount(this.header.width, this.header.height);
+    }
+
+    @Override
+    public int getThumbnailWidth(int imageIndex, int thumbnailIndex) throws IOException {
+        checkThumbnailIndex(imageIndex, thumbnailIndex);
+
+        return QOIBoxFilter.getReducedSize(this.header.width, 2 << thumbnailIndex);
+    }
+
+    @Override
+    public int getThumbnailHeight(int imageIndex, int thumbnailIndex) throws IOException {
+        checkThumbnailIndex(imageIndex, thumbnailIndex);
+
+        return QOIBoxFilter.getReducedSize(this.header.height, 2 << thumbnailIndex);
+    }
+
+    /**
+     * Returns a level of the mipmap pyramid if a full read with {@link QOIImageReadParam#setMipmaps(boolean)}
+     * built it. Otherwise the image is decoded reduced by the factor of the thumbnail, which only
+     * holds the thumbnail and a row of the image in memory. If the read is aborted, the rows
+     * decoded so far are returned.
+     */
+    @Override
+    public BufferedImage readThumbnail(int imageIndex, int thumbnailIndex) throws IOException {
+        checkThumbnailIndex(imageIndex, thumbnailIndex);
+
+        clearAbortRequest();
+
+        processThumbnailStarted(imageIndex, thumbnailIndex);
+
+        QOIImageReadParam param = new QOIImageReadParam();
+
+        if (this.pyramid != null) {
+            BufferedImage image = createLevelImage(this.pyramid, thumbnailIndex + 1, param);
+
+            processThumbnailComplete();
+
+            return image;
+        }
+
+        QOIHeader header = this.header;
+
+        int scale = 2 << thumbnailIndex;
+        int width = QOIBoxFilter.getReducedSize(header.width, scale);
+        int height = QOIBoxFilter.getReducedSize(header.height, scale);
+
+        QOIColorSpace colorSpace = getColorSpace(param);
+        boolean packed = isPacked(param);
+
+        BufferedImage image = packed ?
+                new BufferedImage(width, height, header.hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB) :
+                createBufferedImage(new byte[width * height * header.channels], width, height, header.channels, colorSpace);
+
+        WritableRaster raster = image.getRaster();
+
+        QOIDecoder decoder = takeDecoder();
+
+        prepareCheckpoints(param);
 
-        return Collections.singletonList(type).iterator();
+        this.readingThumbnail = true;
+
+        try {
+            if (!readRows(decoder, scale, packed, getColorTable(colorSpace), null, null, param, (y, row) -> raster.setDataElements(0, y, width, 1, row))) {
+                processReadAborted();
+
+                return image;
+            }
+        } finally {
+            this.readingThumbnail = false;
+        }
+
+        finish(decoder, param);
+
+        processThumbnailComplete();
+
+        return image;
+    }
+
+    private void checkThumbnailIndex(int imageIndex, int thumbnailIndex) throws IOException {
+        if (thumbnailIndex < 0 || thumbnailIndex >= getNumThumbnails(imageIndex)) {
+            throw new IndexOutOfBoundsException("thumbnailIndex: " + thumbnailIndex);
+        }
+    }
+
+    private int checkLevel(int level) throws IOException {
+        if (level > getNumThumbnails(0)) {
+            throw new IllegalArgumentException("The image has no mipmap level " + level);
+        }
+
+        return level;
     }
 
     @Override
     public IIOMetadata getStreamMetadata() {
-        // No metadata supported
+        // QOI files hold a single image, everything is reported as image metadata
         return null;
     }
 
     @Override
-    public IIOMetadata getImageMetadata(int imageIndex) {
-        // No metadata supported
-        return null;
+    public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
+        checkIndex(imageIndex);
+
+        readHeader();
+
+        return new QOIMetadata(this.header, this.scale);
     }
 
     @Override
@@ -115,29 +1452,68 @@ public final class QOIImageReader extends ImageReader {
 
         processImageStarted(imageIndex);
 
-        readImage();
+        QOIImageReadParam qoiParam = param instanceof QOIImageReadParam ? (QOIImageReadParam) param : new QOIImageReadParam();
+
+        boolean isDefault = param == null || ImageParamUtil.isDefault(param);
 
-        int width = this.image.getWidth();
-        int height = this.image.getHeight();
+        if (qoiParam.getLevel() > 0) {
+            if (!isDefault) {
+                throw new IllegalArgumentException("A mipmap level cannot be combined with other read settings");
+            }
+
+            BufferedImage image = createLevelImage(getPyramid(qoiParam), checkLevel(qoiParam.getLevel()), qoiParam);
+
+            processImageComplete();
 
-        BufferedImage source = convertToBufferedImage(this.image);
+            return image;
+        }
 
         // Fast path
-        if (param == null || ImageParamUtil.isDefault(param)) {
+        if (isDefault) {
+            BufferedImage image = readImage(qoiParam);
+
+            // Only a complete image is kept
+            if (image != this.image) {
+                processReadAborted();
+
+                return image;
+            }
+
             processImageComplete();
 
-            return source;
+            return image;
         }
 
-        Rectangle sourceRegion = getSourceRegion(param, width, height);
+        readHeader();
+
+        // A destination in the layout of a full read is decoded into directly
+        if (this.image == null && ImageParamUtil.isDefaultExceptDestination(param)) {
+            BufferedImage dest = param.getDestination();
+            QOIRowSink sink = getDirectSink(dest, qoiParam);
 
-        int sourceXSubsampling = param.getSourceXSubsampling();
-        int sourceYSubsampling = param.getSourceYSubsampling();
-        int[] sourceBands = param.getSourceBands();
-        int[] destinationBands = param.getDestinationBands();
-        Point destinationOffset = param.getDestinationOffset();
+            if (sink != null) {
+                QOIDecoder decoder = takeDecoder();
 
-        BufferedImage dest = getDestination(param, getImageTypes(0), width, height);
+                prepareCheckpoints(qoiParam);
+
+                if (readBands(decoder, sink, dest, qoiParam)) {
+                    processImageComplete();
+                } else {
+                    processReadAborted();
+                }
+
+                return dest;
+            }
+        }
+
+        int width = this.header.width;
+        int height = this.header.height;
+        int channels = this.header.channels;
+
+        BufferedImage dest = getDestination(param, getImageTypes(qoiParam), width, height);
+
+        // Linear samples are converted when the destination is sRGB
+        QOIColorSpace colorSpace = dest.getColorModel().getColorSpace().isCS_sRGB() ? QOIColorSpace.SRGB : this.header.colorSpace;
 
         SampleModel destSampleModel = dest.getSampleModel();
 
@@ -149,98 +1525,267 @@ public final class QOIImageReader extends ImageReader {
             }
         }
 
-        checkReadParamBandSettings(param, this.image.getChannels(), destBands);
+        checkReadParamBandSettings(param, channels, destBands);
+
+        if (readRegion(param, qoiParam, dest.getRaster(), dest.isAlphaPremultiplied(), colorSpace)) {
+            processImageComplete();
+        } else {
+            processReadAborted();
+        }
+
+        return dest;
+    }
+
+    @Override
+    public boolean canReadRaster() {
+        return true;
+    }
+
+    /**
+     * Reads the samples as stored in the file, RGB(A) bytes interleaved in a single bank, with neither
+     * color conversion nor premultiplication. The raster is located at the destination offset, any
+     * destination or destination type is ignored.
+     */
+    @Override
+    public Raster readRaster(int imageIndex, ImageReadParam param) throws IOException {
+        checkIndex(imageIndex);
+
+        clearAbortRequest();
+
+        processImageStarted(imageIndex);
+
+        QOIImageReadParam qoiParam = param instanceof QOIImageReadParam ? (QOIImageReadParam) param : new QOIImageReadParam();
+
+        if (qoiParam.getLevel() > 0) {
+            throw new IllegalArgumentException("Mipmap levels cannot be read as a raster");
+        }
+
+        readHeader();
+
+        int width = this.header.width;
+        int height = this.header.height;
+        int channels = this.header.channels;
+
+        // Decode the whole image straight into the array of the raster
+        if (this.image == null && (param == null || ImageParamUtil.isDefaultExceptDestination(param))) {
+            if (this.header.getPixelCount() > MAX_ARRAY_SIZE / channels) {
+                throw new IIOException("The image is too large to be read as a single raster");
+            }
+
+            byte[] pixelData = new byte[width * height * channels];
+
+            QOIDecoder decoder = takeDecoder();
+
+            prepareCheckpoints(qoiParam);
+
+            if (readBands(decoder, QOIRowSink.of(pixelData, width, channels, null), null, qoiParam)) {
+                processImageComplete();
+            } else {
+                processReadAborted();
+            }
 
-        WritableRaster sourceRaster = source.getWritableTile(0, 0);
-        WritableRaster destRaster = dest.getWritableTile(0, 0);
+            DataBuffer buffer = new DataBufferByte(pixelData, pixelData.length);
+
+            return Raster.createInterleavedRaster(buffer, width, height, width * channels, channels, channels == 4 ? OFFSETS_4 : OFFSETS_3, null);
+        }
 
-        if (sourceBands != null) {
-            sourceRaster = sourceRaster.createWritableChild(
-                    0,
-                    0,
-                    width,
-                    height,
-                    0,
-                    0,
-                    sourceBands
-            );
+        if (param == null) {
+            param = qoiParam;
         }
 
-        if (destinationBands != null) {
-            destRaster = destRaster.createWritableChild(
-                    0,
-                    0,
-                    destRaster.getWidth(),
-                    destRaster.getHeight(),
-                    0,
-                    0,
-                    destinationBands
-            );
+        Rectangle sourceRegion = getSourceRegion(param, width, height);
+
+        int xSubsampling = param.getSourceXSubsampling();
+        int ySubsampling = param.getSourceYSubsampling();
+        int bands = param.getSourceBands() != null ? param.getSourceBands().length : channels;
+
+        checkReadParamBandSettings(param, channels, bands);
+
+        WritableRaster raster = Raster.createInterleavedRaster(
+                DataBuffer.TYPE_BYTE,
+                (sourceRegion.width + xSubsampling - 1) / xSubsampling,
+                (sourceRegion.height + ySubsampling - 1) / ySubsampling,
+                bands,
+                param.getDestinationOffset()
+        );
+
+        if (readRegion(param, qoiParam, raster, false, this.header.colorSpace)) {
+            processImageComplete();
+        } else {
+            processReadAborted();
         }
 
-        int destMinX = destRaster.getMinX();
-        int destMaxX = destMinX + destRaster.getWidth() - 1;
-        int destMinY = destRaster.getMinY();
-        int destMaxY = destMinY + destRaster.getHeight() - 1;
+        return raster;
+    }
+
+    /**
+     * Copies the source region of {@code param} into {@code raster}, converting samples to
+     * {@code colorSpace} and premultiplying them if requested.
+     *
+     * @return false if the read was aborted
+     */
+    private boolean readRegion(@NotNull ImageReadParam param,
+                               @NotNull QOIImageReadParam qoiParam,
+                               @NotNull WritableRaster raster,
+                               boolean premultiplied,
+                               @NotNull QOIColorSpace colorSpace) throws IOException {
+        int width = this.header.width;
+        int height = this.header.height;
+        int channels = this.header.channels;
+
+        byte[] colorTable = getColorTable(colorSpace);
+
+        QOIRegionCopier copier = new QOIRegionCopier(
+                channels,
+                getSourceRegion(param, width, height),
+                param.getSourceXSubsampling(),
+                param.getSourceYSubsampling(),
+                param.getDestinationOffset(),
+                param.getSourceBands(),
+                param.getDestinationBands(),
+                raster,
+                premultiplied
+        );
+
+        int rows = copier.getRowCount();
+
+        // Copy from the image if it is already decoded, otherwise decode only up to
+        // the last requested row, never storing rows outside the region.
+        byte[] pixelData = null;
+        QOIPixelSource source = null;
+        int[] rgba = null;
+        QOIDecoder decoder = null;
+        byte[] row = null;
+        int nextRow = 0;
 
-        int[] pixel = new int[sourceRaster.getNumBands()];
+        QOIBufferPool pool = qoiParam.getBufferPool();
 
-        for (int y = sourceRegion.y; y < sourceRegion.y + sourceRegion.height; y += sourceYSubsampling) {
-            if (y < 0 || y >= height) {
-                continue;
+        if (this.image != null && !isPacked(this.image) && getColorSpace(this.image) == colorSpace && this.scale == 1) {
+            pixelData = ((DataBufferByte) this.image.getRaster().getDataBuffer()).getData();
+        } else if (this.image != null && this.forwardOnly && rows > 0) {
+            QOIColorSpace cached = getColorSpace(this.image);
+
+            // Neither a reduced image, converted samples nor premultiplied translucent pixels
+            // can be turned back into the pixels of the file
+            if (this.scale > 1 || this.image.isAlphaPremultiplied() || cached != colorSpace && cached != this.header.colorSpace) {
+                throw new IIOException("The pixels of an InputStream input can only be read once");
             }
 
-            int destY = destinationOffset.y + (y - sourceRegion.y) / sourceYSubsampling;
+            // The input cannot be decoded again, read the cached image instead
+            source = QOIRasterPixelSource.of(this.image);
+            rgba = QOIBufferPool.allocateInts(pool, width);
+            row = QOIBufferPool.allocateBytes(pool, width * channels);
 
-            if (destY < destMinY || destY > destMaxY) {
-                continue;
+            if (cached == colorSpace) {
+                colorTable = null;
             }
+        } else if (rows > 0) {
+            decoder = takeDecoder();
+            row = QOIBufferPool.allocateBytes(pool, width * channels);
 
-            for (int x = sourceRegion.x; x < sourceRegion.x + sourceRegion.width; x += sourceXSubsampling) {
-                if (x < 0 || x >= width) {
-                    continue;
-                }
+            prepareCheckpoints(qoiParam);
+
+            // Resume at the nearest checkpoint above the region
+            int checkpoint = this.checkpoints != null ? this.checkpoints.floor(copier.getFirstSourceRow()) : -1;
+
+            if (checkpoint > 0) {
+                decoder.restoreCheckpoint(this.checkpoints, checkpoint);
+
+                nextRow = this.checkpoints.getRow(checkpoint);
+            }
+        }
+
+        try {
+            for (int k = 0; k < rows; k++) {
+                int y = copier.getFirstSourceRow() + k * param.getSourceYSubsampling();
 
-                int destX = destinationOffset.x + (x - sourceRegion.x) / sourceXSubsampling;
+                if (pixelData != null) {
+                    copier.copyRow(pixelData, y * width * channels, y);
+                } else if (source != null) {
+                    source.readRow(y, rgba);
 
-                if (destX < destMinX || destX > destMaxX) {
-                    continue;
+                    unpack(rgba, row, width, channels, colorTable);
+
+                    copier.copyRow(row, 0, y);
+                } else {
+                    skipRows(decoder, nextRow, y);
+                    recordCheckpoint(decoder, y);
+
+                    decoder.readPixels(row, 0, width, channels, colorTable);
+
+                    nextRow = y + 1;
+
+                    copier.copyRow(row, 0, y);
                 }
 
-                sourceRaster.getPixel(x, y, pixel);
+                processImageProgress((k + 1) * 100F / rows);
 
-                destRaster.setPixel(destX, destY, pixel);
+                if (abortRequested()) {
+                    return false;
+                }
             }
+        } finally {
+            QOIBufferPool.free(pool, rgba);
+            QOIBufferPool.free(pool, row);
+        }
 
-            processImageProgress((y - sourceRegion.y) * 100F / sourceRegion.height);
+        return true;
+    }
 
-            if (abortRequested()) {
-                processReadAborted();
+    /**
+     * Converts {@code 0xRRGGBBAA} pixels to interleaved RGB(A) bytes, mapping color samples
+     * through {@code colorTable} unless it is null.
+     */
+    private static void unpack(int @NotNull [] rgba, byte @NotNull [] row, int count, int channels, byte[] colorTable) {
+        for (int x = 0, i = 0; x < count; x++, i += channels) {
+            int px = QOIDecoder.map(rgba[x], colorTable);
 
-                return dest;
+            row[i] = (byte) (px >>> 24);
+            row[i + 1] = (byte) (px >>> 16);
+            row[i + 2] = (byte) (px >>> 8);
+
+            if (channels == 4) {
+                row[i + 3] = (byte) px;
             }
         }
+    }
 
-        processImageComplete();
+    @Override
+    public void dispose() {
+        closeOwnedStream();
 
-        return dest;
+        super.dispose();
     }
 
     @Override
     public void reset() {
         super.reset();
 
+        this.decoder = null;
+        this.header = null;
         this.image = null;
+        this.scale = 1;
+        this.pyramid = null;
     }
 
     public static BufferedImage convertToBufferedImage(@NotNull QOIImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int channels = image.getChannels();
+        return createBufferedImage(
+                image.getPixelData(),
+                image.getWidth(),
+                image.getHeight(),
+                image.getChannels(),
+                image.getColorSpace()
+        );
+    }
 
+    private static BufferedImage createBufferedImage(byte @NotNull [] pixelData,
+                                                     int width,
+                                                     int height,
+                                                     int channels,
+                                                     @NotNull QOIColorSpace colorSpace) {
         boolean hasAlpha = channels == 4;
 
-        DataBufferByte buffer = new DataBufferByte(image.getPixelData(), width * height * channels);
+        DataBufferByte buffer = new DataBufferByte(pixelData, width * height * channels);
 
         WritableRaster raster = Raster.createInterleavedRaster(
                 buffer,
@@ -252,7 +1797,7 @@ public final class QOIImageReader extends ImageReader {
                 new Point(0, 0)
         );
 
-        ColorSpace awtColorSpace = getAwtColorSpace(image.getColorSpace());
+        ColorSpace awtColorSpace = getAwtColorSpace(colorSpace);
 
         ColorModel colorModel = new ComponentColorModel(
                 awtColorSpace,
@@ -1,9 +1,18 @@
 package io.github.xiaozhuai.jetbrains.qoi;
 
+import org.jetbrains.annotations.NotNull;
+
 import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Locale;
 
 import static io.github.xiaozhuai.jetbrains.qoi.QOIPluginConstants.*;
@@ -18,7 +27,9 @@ public final class QOIImageReaderSpi extends ImageReaderSpi {
                 QOI_SUFFIXES,
                 QOI_MIME_TYPES,
                 QOIImageReader.class.getName(),
-                new Class[]{ImageInputStream.class},
+                // Files are memory-mapped, arrays and buffers are decoded in place,
+                // input streams are read forward-only without a cache
+                new Class[]{ImageInputStream.class, File.class, Path.class, byte[].class, ByteBuffer.class, InputStream.class},
                 new String[]{QOIImageWriterSpi.class.getName()},
                 // Standard stream metadata is not supported
                 false,
@@ -26,10 +37,10 @@ public final class QOIImageReaderSpi extends ImageReaderSpi {
                 null,
                 null,
                 null,
-                // Standard image metadata is not supported
-                false,
-                null,
-                null,
+                // Native and standard image metadata, built from the header
+                true,
+                QOIMetadataFormat.NATIVE_FORMAT_NAME,
+                QOIMetadataFormat.class.getName(),
                 null,
                 null
         );
@@ -37,6 +48,53 @@ public final class QOIImageReaderSpi extends ImageReaderSpi {
 
     @Override
     public boolean canDecodeInput(Object source) throws IOException {
+        if (source instanceof byte[]) {
+            return hasMagic(ByteBuffer.wrap((byte[]) source));
+        }
+
+        if (source instanceof ByteBuffer) {
+            return hasMagic((ByteBuffer) source);
+        }
+
+        if (source instanceof File || source instanceof Path) {
+            Path path = source instanceof File ? ((File) source).toPath() : (Path) source;
+
+            if (!Files.isRegularFile(path)) {
+                return false;
+            }
+
+            ByteBuffer b = ByteBuffer.allocate(4);
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (b.hasRemaining() && channel.read(b) >= 0) {
+                    // Read until the magic is complete or the file ends
+                }
+            }
+
+            return hasMagic(b.flip());
+        }
+
+        if (source instanceof InputStream) {
+            InputStream in = (InputStream) source;
+
+            // Without mark support the magic could not be put back
+            if (!in.markSupported()) {
+                return false;
+            }
+
+            in.mark(4);
+
+            byte[] b;
+
+            try {
+                b = in.readNBytes(4);
+            } finally {
+                in.reset();
+            }
+
+            return hasMagic(ByteBuffer.wrap(b));
+        }
+
         if (!(source instanceof ImageInputStream)) {
             return false;
         }
@@ -47,10 +105,20 @@ public final class QOIImageReaderSpi extends ImageReaderSpi {
         in.readFully(b);
         in.reset();
 
-        return b[0] == QOI_HEADER[0]
-                && b[1] == QOI_HEADER[1]
-                && b[2] == QOI_HEADER[2]
-                && b[3] == QOI_HEADER[3];
+        return hasMagic(ByteBuffer.wrap(b));
+    }
+
+    /**
+     * Checks the magic at the position of {@code b}, without moving it.
+     */
+    private static boolean hasMagic(@NotNull ByteBuffer b) {
+        int p = b.position();
+
+        return b.remaining() >= 4
+                && b.get(p) == QOI_HEADER[0]
+                && b.get(p + 1) == QOI_HEADER[1]
+                && b.get(p + 2) == QOI_HEADER[2]
+                && b.get(p + 3) == QOI_HEADER[3];
     }
 
     @Override
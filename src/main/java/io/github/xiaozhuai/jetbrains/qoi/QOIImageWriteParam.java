@@ -0,0 +1,82 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import javax.imageio.ImageWriteParam;
+import java.util.Locale;
+
+/**
+ * QOI specific write options, on top of the standard {@link ImageWriteParam} ones.
+ */
+public final class QOIImageWriteParam extends ImageWriteParam {
+
+    /**
+     * Images with at least this many pixels are encoded on several threads, see {@link #setParallelThreshold(long)}.
+     * Shares the {@code qoi.parallelThreshold} system property with {@link QOIImageReadParam}.
+     */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = QOIImageReadParam.DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Size of the buffer ops are collected in before they are written, see {@link #setBufferSize(int)}.
+     * Can be changed with the {@code qoi.bufferSize} system property.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("qoi.bufferSize", 256 * 1024);
+
+    // Enough for the header, a few ops and the end marker
+    private static final int MIN_BUFFER_SIZE = 64;
+
+    private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private int bufferSize = Math.max(DEFAULT_BUFFER_SIZE, MIN_BUFFER_SIZE);
+
+    private QOIBufferPool bufferPool;
+
+    public QOIImageWriteParam(Locale locale) {
+        super(locale);
+    }
+
+    /**
+     * Images with at least {@code pixels} pixels are split into row stripes that encode
+     * concurrently on the common {@link java.util.concurrent.ForkJoinPool}. The output is
+     * identical to a serial encode. {@link Long#MAX_VALUE} disables it.
+     */
+    public void setParallelThreshold(long pixels) {
+        if (pixels < 0) {
+            throw new IllegalArgumentException("pixels < 0");
+        }
+
+        this.parallelThreshold = pixels;
+    }
+
+    public long getParallelThreshold() {
+        return this.parallelThreshold;
+    }
+
+    /**
+     * Encoded data is collected in a buffer of {@code bytes} bytes, which is written to the
+     * output whenever it fills up. The buffer is kept by the writer and reused across images.
+     */
+    public void setBufferSize(int bytes) {
+        if (bytes < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("bytes < " + MIN_BUFFER_SIZE);
+        }
+
+        this.bufferSize = bytes;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Takes the row and op buffers of writes from {@code pool} and returns them afterwards,
+     * so writers encoding many images share them. Null, the default, allocates the row
+     * buffer for every image and keeps the op buffer in the writer.
+     */
+    public void setBufferPool(QOIBufferPool pool) {
+        this.bufferPool = pool;
+    }
+
+    public QOIBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+}
@@ -14,15 +14,37 @@ import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.*;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public final class QOIImageWriter extends ImageWriter {
 
+    // Rows encoded between progress updates and abort checks when writing a whole image
+    private static final int PROGRESS_ROWS = 64;
+
+    // Chunk buffer of the serial encoder, kept across writes of the same buffer size
+    private byte[] buffer;
+
+    // Image started by prepareWriteEmpty, until endWriteEmpty
+    private EmptyImage empty;
+
     QOIImageWriter(@NotNull ImageWriterSpi originatingProvider) {
         super(originatingProvider);
     }
 
+    @Override
+    public ImageWriteParam getDefaultWriteParam() {
+        return new QOIImageWriteParam(getLocale());
+    }
+
     @Override
     public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
         // Metadata is not supported
@@ -47,22 +69,55 @@ public final class QOIImageWriter extends ImageWriter {
         return null;
     }
 
+    /**
+     * Rasters are encoded as is, their 3 or 4 bands taken as sRGB(A) samples.
+     */
+    @Override
+    public boolean canWriteRasters() {
+        return true;
+    }
+
     @Override
     public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+        if (this.empty != null) {
+            throw new IllegalStateException("An empty image is being written");
+        }
+
         clearAbortRequest();
 
         processImageStarted(0);
 
         RenderedImage rendered = image.getRenderedImage();
+        Raster raster = image.getRaster();
+
+        QOIImageWriteParam qoiParam = param instanceof QOIImageWriteParam ? (QOIImageWriteParam) param : new QOIImageWriteParam(getLocale());
+
+        Rectangle bounds = raster != null ?
+                raster.getBounds() :
+                new Rectangle(rendered.getMinX(), rendered.getMinY(), rendered.getWidth(), rendered.getHeight());
 
         // Fast path
         if (param == null || ImageParamUtil.isDefault(param)) {
-            writeImage(createFromRenderedImage(rendered));
+            if (raster != null) {
+                writeImage(QOIRasterPixelSource.of(raster), qoiParam);
+            } else if (rendered instanceof BufferedImage) {
+                writeImage(QOIRasterPixelSource.of(rendered), qoiParam);
+            } else {
+                writeTiles(new QOITileRowReader(rendered, bounds), qoiParam);
+            }
 
             return;
         }
 
-        Rectangle sourceRegion = new Rectangle(0, 0, rendered.getWidth(), rendered.getHeight());
+        writeTiles(getRowReader(rendered, raster, bounds, param), qoiParam);
+    }
+
+    /**
+     * Reads the source region of {@code param}, converting the pixels of an image through its color
+     * model unless bands are selected, and taking raw samples of the selected bands otherwise.
+     */
+    private static QOITileRowReader getRowReader(RenderedImage rendered, Raster raster, @NotNull Rectangle bounds, @NotNull ImageWriteParam param) {
+        Rectangle sourceRegion = bounds;
 
         if (param.getSourceRegion() != null) {
             sourceRegion = sourceRegion.intersection(param.getSourceRegion());
@@ -79,12 +134,17 @@ public final class QOIImageWriter extends ImageWriter {
         sourceRegion.width -= subsamplingXOffset;
         sourceRegion.height -= subsamplingYOffset;
 
-        int width = sourceRegion.width;
-        int height = sourceRegion.height;
+        if (sourceRegion.isEmpty()) {
+            throw new IllegalArgumentException("Empty source region");
+        }
 
-        Raster raster = rendered.getData(sourceRegion);
+        // Without source bands the pixels of an image are what its color model makes of them
+        if (raster == null && sourceBands == null) {
+            return new QOITileRowReader(rendered, sourceRegion, sourceXSubsampling, sourceYSubsampling);
+        }
 
-        int bandCount = sourceBands == null ? raster.getNumBands() : sourceBands.length;
+        int numBands = raster != null ? raster.getNumBands() : rendered.getSampleModel().getNumBands();
+        int bandCount = sourceBands == null ? numBands : sourceBands.length;
 
         if (bandCount != 3 && bandCount != 4) {
             throw new IllegalArgumentException("Band count not supported");
@@ -92,286 +152,535 @@ public final class QOIImageWriter extends ImageWriter {
 
         if (sourceBands != null) {
             for (int sourceBand : sourceBands) {
-                if (sourceBand >= raster.getNumBands()) {
+                if (sourceBand >= numBands) {
                     throw new IllegalArgumentException("Invalid band");
                 }
             }
         }
 
-        raster = raster.createChild(
-                sourceRegion.x,
-                sourceRegion.y,
-                width,
-                height,
-                0,
-                0,
-                sourceBands
-        );
+        if (raster != null) {
+            return new QOITileRowReader(raster, sourceRegion, sourceXSubsampling, sourceYSubsampling, sourceBands);
+        }
+
+        // Source bands select raw bands of the image, see ImageWriteParam#setSourceBands
+        return new QOITileRowReader(rendered, sourceRegion, sourceXSubsampling, sourceYSubsampling, sourceBands);
+    }
+
+    /**
+     * Encodes the tiles of the source band by band, as they are produced.
+     */
+    private void writeTiles(@NotNull QOITileRowReader reader, @NotNull QOIImageWriteParam param) throws IOException {
+        int width = reader.getWidth();
+        int height = reader.getHeight();
 
-        width = (width + sourceXSubsampling - 1) / sourceXSubsampling;
-        height = (height + sourceYSubsampling - 1) / sourceYSubsampling;
+        QOIBufferPool pool = param.getBufferPool();
 
-        byte[] pixels = new byte[width * height * bandCount];
+        byte[] buffer = getBuffer(param);
+        int[] row = QOIBufferPool.allocateInts(pool, width);
 
-        int[] pixel = new int[bandCount];
+        try (OutputStream out = openOutput()) {
+            QOIEncoder encoder = new QOIEncoder(out, buffer);
+            encoder.writeHeader(width, height, reader.getChannels(), reader.getColorSpace());
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // TODO: Should we here convert the pixel using the ColorModel?
-                raster.getPixel(x * sourceXSubsampling, y * sourceYSubsampling, pixel);
+            while (reader.nextBand()) {
+                for (int y = reader.getBandStart(); y < reader.getBandEnd(); y++) {
+                    reader.readRow(y, row);
 
-                int i = (y * width + x) * bandCount;
+                    encoder.encode(row, 0, width);
+                }
 
-                pixels[i] = (byte) pixel[0];
-                pixels[i + 1] = (byte) pixel[1];
-                pixels[i + 2] = (byte) pixel[2];
+                processImageProgress(reader.getBandEnd() * 100F / height);
 
-                if (bandCount == 4) {
-                    pixels[i + 3] = (byte) pixel[3];
+                // The ops still buffered are dropped, the output never gets a partial chunk flushed
+                if (abortRequested()) {
+                    processWriteAborted();
+
+                    return;
                 }
             }
 
-            processImageProgress(y * 100F / height);
+            encoder.finish();
+
+            out.flush();
+        } finally {
+            QOIBufferPool.free(pool, buffer);
+            QOIBufferPool.free(pool, row);
+        }
+
+        processImageComplete();
+    }
+
+    private void writeImage(@NotNull QOIPixelSource source, @NotNull QOIImageWriteParam param) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
 
-            if (abortRequested()) {
+        try (OutputStream out = openOutput()) {
+            boolean complete;
+
+            if (ForkJoinPool.getCommonPoolParallelism() > 1 && (long) width * height >= param.getParallelThreshold()) {
+                QOIParallelEncoder encoder = new QOIParallelEncoder(source, param.getBufferSize(), param.getBufferPool());
+
+                complete = encoder.encode(out, ForkJoinPool.commonPool(), rows -> {
+                    processImageProgress(rows * 100F / height);
+
+                    return !abortRequested();
+                });
+            } else {
+                complete = encodeImage(source, out, param);
+            }
+
+            if (!complete) {
                 processWriteAborted();
 
                 return;
             }
+
+            out.flush();
         }
 
-        writeImage(QOIUtil.createFromPixelData(pixels, width, height, bandCount));
+        processImageComplete();
     }
 
-    private void writeImage(@NotNull QOIImage converted) throws IOException {
-        ImageOutputStream output = (ImageOutputStream) this.output;
+    /**
+     * Encodes {@code source} on the calling thread.
+     *
+     * @return whether the image was completed, false if the write was aborted
+     */
+    private boolean encodeImage(@NotNull QOIPixelSource source, @NotNull OutputStream out, @NotNull QOIImageWriteParam param) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
 
-        QOIUtil.writeImage(converted, new WrappedImageOutputStream(output));
+        QOIBufferPool pool = param.getBufferPool();
 
-        output.flush();
+        byte[] buffer = getBuffer(param);
+        int[] row = QOIBufferPool.allocateInts(pool, width);
 
-        processImageComplete();
-    }
+        try {
+            QOIEncoder encoder = new QOIEncoder(out, buffer);
+            encoder.writeHeader(width, height, source.getChannels(), source.getColorSpace());
 
-    public static QOIImage createFromRenderedImage(@NotNull RenderedImage image) {
-        if (image instanceof BufferedImage) {
-            return createFromBufferedImage((BufferedImage) image);
-        }
+            for (int y = 0; y < height; y++) {
+                source.readRow(y, row);
 
-        return createFromRaster(image.getData(), image.getColorModel());
-    }
+                encoder.encode(row, 0, width);
 
-    private static QOIImage createFromBufferedImage(@NotNull BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        // Try use data buffer directly, if possible
-        {
-            WritableRaster raster = image.getRaster();
-
-            if (raster.getClass().getName().equals("sun.awt.image.ByteInterleavedRaster") &&
-                    raster.getMinX() == 0 &&
-                    raster.getMinY() == 0 &&
-                    raster.getWidth() == width &&
-                    raster.getHeight() == height) {
-                ColorModel colorModel = image.getColorModel();
-
-                if (!colorModel.isAlphaPremultiplied()) {
-                    byte[] buffer = ((DataBufferByte) raster.getDataBuffer()).getData();
-
-                    SampleModel model = raster.getSampleModel();
-
-                    if (model instanceof PixelInterleavedSampleModel &&
-                            model.getTransferType() == DataBuffer.TYPE_BYTE &&
-                            model.getWidth() == width &&
-                            model.getHeight() == height &&
-                            model.getNumBands() == 3 &&
-                            ((PixelInterleavedSampleModel) model).getPixelStride() == 3 &&
-                            ((PixelInterleavedSampleModel) model).getScanlineStride() == 3 * width &&
-                            Arrays.equals(((PixelInterleavedSampleModel) model).getBandOffsets(), QOIImageReader.OFFSETS_3) &&
-                            buffer.length == width * height * 3) {
-                        return QOIUtil.createFromPixelData(buffer, width, height, 3);
-                    }
+                if ((y + 1) % PROGRESS_ROWS == 0 && y + 1 < height) {
+                    processImageProgress((y + 1) * 100F / height);
 
-                    if (model instanceof PixelInterleavedSampleModel &&
-                            model.getTransferType() == DataBuffer.TYPE_BYTE &&
-                            model.getWidth() == width &&
-                            model.getHeight() == height &&
-                            model.getNumBands() == 4 &&
-                            ((PixelInterleavedSampleModel) model).getPixelStride() == 4 &&
-                            ((PixelInterleavedSampleModel) model).getScanlineStride() == 4 * width &&
-                            Arrays.equals(((PixelInterleavedSampleModel) model).getBandOffsets(), QOIImageReader.OFFSETS_4) &&
-                            buffer.length == width * height * 4) {
-                        return QOIUtil.createFromPixelData(buffer, width, height, 4);
+                    // The ops still buffered are dropped
+                    if (abortRequested()) {
+                        return false;
                     }
                 }
             }
+
+            encoder.finish();
+        } finally {
+            QOIBufferPool.free(pool, buffer);
+            QOIBufferPool.free(pool, row);
         }
 
-        int channels = image.getTransparency() != Transparency.OPAQUE ? 4 : 3;
+        return true;
+    }
 
-        byte[] pixelData = new byte[width * height * channels];
+    @Override
+    public boolean canWriteEmpty() {
+        if (this.output == null) {
+            throw new IllegalStateException("Output not set");
+        }
 
-        switch (image.getType()) {
-            case BufferedImage.TYPE_INT_ARGB: {
-                assert channels == 4;
+        return true;
+    }
 
-                Raster raster = image.getRaster();
+    /**
+     * Starts an image of {@code width} by {@code height} pixels, with an alpha channel unless
+     * {@code imageType} is opaque. Its rows are then provided top to bottom by
+     * {@link #replacePixels} and encoded as they come, so only the current band is ever held
+     * in memory. Metadata and thumbnails are ignored, and so are all settings of {@code param}
+     * but the QOI specific ones.
+     */
+    @Override
+    public void prepareWriteEmpty(IIOMetadata streamMetadata,
+                                  ImageTypeSpecifier imageType,
+                                  int width,
+                                  int height,
+                                  IIOMetadata imageMetadata,
+                                  List<? extends BufferedImage> thumbnails,
+                                  ImageWriteParam param) throws IOException {
+        if (this.output == null) {
+            throw new IllegalStateException("Output not set");
+        }
 
-                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (this.empty != null) {
+            throw new IllegalStateException("An empty image is already being written");
+        }
 
-                int[] data = buffer.getData();
+        if (imageType == null) {
+            throw new IllegalArgumentException("imageType == null");
+        }
 
-                int total = width * height * 4;
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("width < 1 || height < 1");
+        }
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 4, j++) {
-                    int pixel = data[j];
+        clearAbortRequest();
 
-                    pixelData[i] = (byte) (pixel >> 16);
-                    pixelData[i + 1] = (byte) (pixel >> 8);
-                    pixelData[i + 2] = (byte) pixel;
-                    pixelData[i + 3] = (byte) (pixel >> 24);
-                }
+        processImageStarted(0);
 
-                break;
-            }
-            case BufferedImage.TYPE_INT_RGB: {
-                assert channels == 3;
+        QOIImageWriteParam qoiParam = param instanceof QOIImageWriteParam ? (QOIImageWriteParam) param : new QOIImageWriteParam(getLocale());
 
-                Raster raster = image.getRaster();
+        int channels = imageType.getColorModel().getTransparency() != Transparency.OPAQUE ? 4 : 3;
 
-                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        QOIColorSpace colorSpace = QOIRasterPixelSource.getColorSpace(imageType.getSampleModel(), imageType.getColorModel());
 
-                int[] data = buffer.getData();
+        OutputStream out = openOutput();
 
-                int total = width * height * 3;
+        this.empty = new EmptyImage(out, getBuffer(qoiParam), qoiParam.getBufferPool(), width, height, channels, colorSpace);
+        this.empty.encoder.writeHeader(width, height, channels, colorSpace);
+    }
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 3, j++) {
-                    int pixel = data[j];
+    /**
+     * @return whether an empty image is being written, only its pixels can be replaced
+     */
+    @Override
+    public boolean canReplacePixels(int imageIndex) throws IOException {
+        if (this.output == null) {
+            throw new IllegalStateException("Output not set");
+        }
 
-                    pixelData[i] = (byte) (pixel >> 16);
-                    pixelData[i + 1] = (byte) (pixel >> 8);
-                    pixelData[i + 2] = (byte) pixel;
-                }
+        return this.empty != null && imageIndex == 0;
+    }
 
-                break;
-            }
-            case BufferedImage.TYPE_INT_BGR: {
-                assert channels == 3;
+    @Override
+    public void prepareReplacePixels(int imageIndex, Rectangle region) throws IOException {
+        if (!canReplacePixels(imageIndex)) {
+            throw new UnsupportedOperationException("Only the pixels of an empty image being written can be replaced");
+        }
 
-                Raster raster = image.getRaster();
+        if (this.empty.region != null) {
+            throw new IllegalStateException("prepareReplacePixels already called");
+        }
 
-                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (region == null) {
+            throw new IllegalArgumentException("region == null");
+        }
 
-                int[] data = buffer.getData();
+        Rectangle clipped = region.intersection(new Rectangle(this.empty.width, this.empty.height));
 
-                int total = width * height * 3;
+        if (clipped.isEmpty()) {
+            throw new IllegalArgumentException("Empty region");
+        }
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 3, j++) {
-                    int pixel = data[j];
+        this.empty.region = clipped;
+    }
 
-                    pixelData[i] = (byte) pixel;
-                    pixelData[i + 1] = (byte) (pixel >> 8);
-                    pixelData[i + 2] = (byte) (pixel >> 16);
-                }
+    /**
+     * Encodes the next rows of the empty image being written. The pixels, placed at the
+     * destination offset of {@code param} and clipped to the region being replaced, must
+     * cover whole rows right below those replaced so far.
+     */
+    @Override
+    public void replacePixels(RenderedImage image, ImageWriteParam param) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("image == null");
+        }
 
-                break;
-            }
-            case BufferedImage.TYPE_3BYTE_BGR: {
-                assert channels == 3;
+        replacePixels(image, null, param);
+    }
 
-                Raster raster = image.getRaster();
+    /**
+     * Same as {@link #replacePixels(RenderedImage, ImageWriteParam)}, the 3 or 4 bands of
+     * {@code raster} taken as sRGB(A) samples.
+     */
+    @Override
+    public void replacePixels(Raster raster, ImageWriteParam param) throws IOException {
+        if (raster == null) {
+            throw new IllegalArgumentException("raster == null");
+        }
 
-                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        replacePixels(null, raster, param);
+    }
 
-                byte[] data = buffer.getData();
+    private void replacePixels(RenderedImage rendered, Raster raster, ImageWriteParam param) throws IOException {
+        EmptyImage empty = this.empty;
 
-                int total = width * height * 3;
+        if (empty == null || empty.region == null) {
+            throw new IllegalStateException("prepareReplacePixels not called");
+        }
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 3, j += 3) {
-                    pixelData[i] = data[j + 2];
-                    pixelData[i + 1] = data[j + 1];
-                    pixelData[i + 2] = data[j];
-                }
+        Rectangle bounds = raster != null ?
+                raster.getBounds() :
+                new Rectangle(rendered.getMinX(), rendered.getMinY(), rendered.getWidth(), rendered.getHeight());
 
-                break;
-            }
-            case BufferedImage.TYPE_4BYTE_ABGR: {
-                assert channels == 4;
+        QOITileRowReader reader;
+
+        if (raster == null && (param == null || ImageParamUtil.isDefaultExceptDestinationOffset(param))) {
+            reader = new QOITileRowReader(rendered, bounds);
+        } else {
+            reader = getRowReader(rendered, raster, bounds, param != null ? param : new QOIImageWriteParam(getLocale()));
+        }
+
+        // Raw samples are taken as they are, converted pixels must match the header
+        if (reader.isConverted() && reader.getColorSpace() != empty.colorSpace) {
+            throw new IllegalArgumentException("The pixels are not in the color space of the image");
+        }
+
+        Point offset = param != null ? param.getDestinationOffset() : new Point();
+        Rectangle rows = new Rectangle(offset.x, offset.y, reader.getWidth(), reader.getHeight()).intersection(empty.region);
+
+        if (rows.isEmpty()) {
+            return;
+        }
 
-                Raster raster = image.getRaster();
+        if (rows.x != 0 || rows.width != empty.width || rows.y != empty.nextRow) {
+            throw new IllegalArgumentException("Pixels must be replaced in whole rows, from top to bottom");
+        }
 
-                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        // Rows and first column of the source that land in the image
+        int first = rows.y - offset.y;
+        int end = first + rows.height;
+        int column = -offset.x;
 
-                byte[] data = buffer.getData();
+        int[] row = QOIBufferPool.allocateInts(empty.pool, reader.getWidth());
 
-                int total = width * height * 4;
+        try {
+            while (reader.nextBand() && reader.getBandStart() < end) {
+                for (int y = Math.max(reader.getBandStart(), first); y < Math.min(reader.getBandEnd(), end); y++) {
+                    reader.readRow(y, row);
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 4, j += 4) {
-                    pixelData[i] = data[j + 3];
-                    pixelData[i + 1] = data[j + 2];
-                    pixelData[i + 2] = data[j + 1];
-                    pixelData[i + 3] = data[j];
+                    empty.encode(row, column);
                 }
 
-                break;
+                processImageProgress(empty.nextRow * 100F / empty.height);
             }
-            case BufferedImage.TYPE_BYTE_GRAY: {
-                assert channels == 3;
+        } finally {
+            QOIBufferPool.free(empty.pool, row);
+        }
+    }
 
-                Raster raster = image.getRaster();
+    @Override
+    public void endReplacePixels() throws IOException {
+        if (this.empty == null || this.empty.region == null) {
+            throw new IllegalStateException("prepareReplacePixels not called");
+        }
 
-                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        this.empty.region = null;
+    }
 
-                byte[] data = buffer.getData();
+    /**
+     * Completes the empty image being written. Rows never replaced are left black, and transparent
+     * if the image has an alpha channel.
+     */
+    @Override
+    public void endWriteEmpty() throws IOException {
+        if (this.output == null) {
+            throw new IllegalStateException("Output not set");
+        }
 
-                int total = width * height * 3;
+        EmptyImage empty = this.empty;
 
-                for (int i = 0, j = buffer.getOffset(); i < total; i += 3, j++) {
-                    byte value = data[j];
-                    pixelData[i] = value;
-                    pixelData[i + 1] = value;
-                    pixelData[i + 2] = value;
-                }
+        if (empty == null) {
+            throw new IllegalStateException("prepareWriteEmpty not called");
+        }
 
-                break;
+        if (empty.region != null) {
+            throw new IllegalStateException("endReplacePixels not called");
+        }
+
+        this.empty = null;
+
+        try {
+            if (empty.nextRow < empty.height) {
+                int[] row = QOIBufferPool.allocateInts(empty.pool, empty.width);
+
+                try {
+                    Arrays.fill(row, 0, empty.width, 0);
+
+                    while (empty.nextRow < empty.height) {
+                        empty.encode(row, 0);
+                    }
+                } finally {
+                    QOIBufferPool.free(empty.pool, row);
+                }
             }
-            default:
-                return createFromRaster(image.getRaster(), image.getColorModel());
+
+            empty.encoder.finish();
+
+            empty.out.flush();
+        } finally {
+            empty.close();
         }
 
-        return QOIUtil.createFromPixelData(pixelData, width, height, channels, QOIColorSpace.SRGB);
+        processImageComplete();
     }
 
-    // Slowest method
-    private static QOIImage createFromRaster(@NotNull Raster raster, @NotNull ColorModel colorModel) {
-        int width = raster.getWidth();
-        int height = raster.getHeight();
-        int channels = colorModel.getTransparency() != Transparency.OPAQUE ? 4 : 3;
+    /**
+     * Drops the empty image being written, if any.
+     */
+    private void abandonEmpty() {
+        if (this.empty == null) {
+            return;
+        }
 
-        byte[] pixelData = new byte[width * height * channels];
+        try {
+            this.empty.close();
+        } catch (IOException e) {
+            // The image is incomplete anyway
+        }
+
+        this.empty = null;
+    }
+
+    @Override
+    public void reset() {
+        abandonEmpty();
+
+        super.reset();
+    }
+
+    @Override
+    public void dispose() {
+        abandonEmpty();
+
+        super.dispose();
+    }
+
+    /**
+     * Opens the output for one image. Closing the returned stream only closes files
+     * opened here, streams and channels set by the caller stay open.
+     */
+    private OutputStream openOutput() throws IOException {
+        Object output = this.output;
+
+        if (output == null) {
+            throw new IllegalStateException("Output not set");
+        }
+
+        if (output instanceof ImageOutputStream) {
+            return new WrappedImageOutputStream((ImageOutputStream) output);
+        }
 
-        Object pixel = null;
+        if (output instanceof WritableByteChannel) {
+            return new ChannelOutputStream((WritableByteChannel) output, false);
+        }
+
+        Path path = output instanceof File ? ((File) output).toPath() : (Path) output;
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        return new ChannelOutputStream(channel, true);
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                pixel = raster.getDataElements(x, y, pixel);
+    /**
+     * @return the op buffer, taken from the pool of {@code param} if it has one
+     */
+    private byte[] getBuffer(@NotNull QOIImageWriteParam param) {
+        if (param.getBufferPool() != null) {
+            return param.getBufferPool().getBytes(param.getBufferSize());
+        }
 
-                int rgb = colorModel.getRGB(pixel);
+        if (this.buffer == null || this.buffer.length != param.getBufferSize()) {
+            this.buffer = new byte[param.getBufferSize()];
+        }
 
-                int i = (y * width + x) * channels;
+        return this.buffer;
+    }
+
+    public static QOIImage createFromRenderedImage(@NotNull RenderedImage image) {
+        QOIPixelSource source = QOIRasterPixelSource.of(image);
 
-                pixelData[i] = (byte) (rgb >> 16);
-                pixelData[i + 1] = (byte) (rgb >> 8);
-                pixelData[i + 2] = (byte) rgb;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int channels = source.getChannels();
+
+        byte[] pixelData = new byte[width * height * channels];
+
+        int[] row = new int[width];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            source.readRow(y, row);
+
+            for (int x = 0; x < width; x++, i += channels) {
+                int rgba = row[x];
+
+                pixelData[i] = (byte) (rgba >>> 24);
+                pixelData[i + 1] = (byte) (rgba >>> 16);
+                pixelData[i + 2] = (byte) (rgba >>> 8);
 
                 if (channels == 4) {
-                    pixelData[i + 3] = (byte) (rgb >> 24);
+                    pixelData[i + 3] = (byte) rgba;
                 }
             }
         }
 
-        return QOIUtil.createFromPixelData(pixelData, width, height, channels, QOIColorSpace.SRGB);
+        return QOIUtil.createFromPixelData(pixelData, width, height, channels, source.getColorSpace());
+    }
+
+    /**
+     * Encoder state of an image written by {@link #prepareWriteEmpty}, carried over between calls.
+     */
+    private static final class EmptyImage {
+
+        private final OutputStream out;
+
+        private final byte[] buffer;
+
+        private final QOIBufferPool pool;
+
+        private final QOIEncoder encoder;
+
+        private final int width;
+        private final int height;
+        private final int channels;
+        private final QOIColorSpace colorSpace;
+
+        // Set between prepareReplacePixels and endReplacePixels
+        private Rectangle region;
+
+        // Rows above were encoded
+        private int nextRow;
+
+        EmptyImage(@NotNull OutputStream out,
+                   byte @NotNull [] buffer,
+                   QOIBufferPool pool,
+                   int width,
+                   int height,
+                   int channels,
+                   @NotNull QOIColorSpace colorSpace) {
+            this.out = out;
+            this.buffer = buffer;
+            this.pool = pool;
+            this.encoder = new QOIEncoder(out, buffer);
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.colorSpace = colorSpace;
+        }
+
+        /**
+         * Encodes the next row, {@code rgba[offset, offset + width)}.
+         */
+        void encode(int @NotNull [] rgba, int offset) throws IOException {
+            if (this.channels == 3) {
+                // Alpha of the source is dropped, as for an opaque image
+                for (int x = offset; x < offset + this.width; x++) {
+                    rgba[x] |= 0xff;
+                }
+            }
+
+            this.encoder.encode(rgba, offset, this.width);
+
+            this.nextRow++;
+        }
+
+        void close() throws IOException {
+            try {
+                this.out.close();
+            } finally {
+                QOIBufferPool.free(this.pool, this.buffer);
+            }
+        }
+
     }
 
 }
@@ -4,6 +4,9 @@ import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriter;
 import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageOutputStream;
+import java.io.File;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Locale;
 
 import static io.github.xiaozhuai.jetbrains.qoi.QOIPluginConstants.*;
@@ -18,7 +21,8 @@ public final class QOIImageWriterSpi extends ImageWriterSpi {
                 QOI_SUFFIXES,
                 QOI_MIME_TYPES,
                 QOIImageWriter.class.getName(),
-                new Class[]{ImageOutputStream.class},
+                // Files and channels are written in whole chunks, without a stream in between
+                new Class[]{ImageOutputStream.class, File.class, Path.class, WritableByteChannel.class},
                 new String[]{QOIImageReaderSpi.class.getName()},
                 // Standard stream metadata is not supported
                 false,
@@ -0,0 +1,173 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+import org.w3c.dom.Node;
+
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+
+/**
+ * Read-only image metadata built from the QOI header, and the reduction of the image read, if any.
+ */
+final class QOIMetadata extends IIOMetadata {
+
+    private final QOIHeader header;
+
+    // Factor the image read was reduced by, 1 if it has the size of the header
+    private final int scale;
+
+    QOIMetadata(@NotNull QOIHeader header, int scale) {
+        super(
+                true,
+                QOIMetadataFormat.NATIVE_FORMAT_NAME,
+                QOIMetadataFormat.class.getName(),
+                null,
+                null
+        );
+
+        this.header = header;
+        this.scale = scale;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public IIOMetadataFormat getMetadataFormat(String formatName) {
+        // Avoid the reflective lookup, which may not see the plugin class loader
+        if (QOIMetadataFormat.NATIVE_FORMAT_NAME.equals(formatName)) {
+            return QOIMetadataFormat.getInstance();
+        }
+
+        return super.getMetadataFormat(formatName);
+    }
+
+    @Override
+    public Node getAsTree(String formatName) {
+        if (QOIMetadataFormat.NATIVE_FORMAT_NAME.equals(formatName)) {
+            return getNativeTree();
+        }
+
+        if (IIOMetadataFormatImpl.standardMetadataFormatName.equals(formatName)) {
+            return getStandardTree();
+        }
+
+        throw new IllegalArgumentException("Unsupported metadata format: " + formatName);
+    }
+
+    private Node getNativeTree() {
+        IIOMetadataNode root = new IIOMetadataNode(QOIMetadataFormat.NATIVE_FORMAT_NAME);
+
+        IIOMetadataNode header = new IIOMetadataNode("QOIHeader");
+        header.setAttribute("width", Integer.toString(this.header.width));
+        header.setAttribute("height", Integer.toString(this.header.height));
+        header.setAttribute("channels", Integer.toString(this.header.channels));
+        header.setAttribute("colorSpace", isLinear() ? QOIMetadataFormat.COLOR_SPACE_LINEAR : QOIMetadataFormat.COLOR_SPACE_SRGB);
+        root.appendChild(header);
+
+        if (this.scale > 1) {
+            IIOMetadataNode preview = new IIOMetadataNode("QOIPreview");
+            preview.setAttribute("scale", Integer.toString(this.scale));
+            preview.setAttribute("width", Integer.toString(QOIBoxFilter.getReducedSize(this.header.width, this.scale)));
+            preview.setAttribute("height", Integer.toString(QOIBoxFilter.getReducedSize(this.header.height, this.scale)));
+            root.appendChild(preview);
+        }
+
+        return root;
+    }
+
+    @Override
+    protected IIOMetadataNode getStandardChromaNode() {
+        IIOMetadataNode chroma = new IIOMetadataNode("Chroma");
+
+        IIOMetadataNode colorSpaceType = new IIOMetadataNode("ColorSpaceType");
+        colorSpaceType.setAttribute("name", "RGB");
+        chroma.appendChild(colorSpaceType);
+
+        IIOMetadataNode numChannels = new IIOMetadataNode("NumChannels");
+        numChannels.setAttribute("value", Integer.toString(this.header.channels));
+        chroma.appendChild(numChannels);
+
+        IIOMetadataNode gamma = new IIOMetadataNode("Gamma");
+        gamma.setAttribute("value", isLinear() ? "1.0" : "2.2");
+        chroma.appendChild(gamma);
+
+        return chroma;
+    }
+
+    @Override
+    protected IIOMetadataNode getStandardCompressionNode() {
+        IIOMetadataNode compression = new IIOMetadataNode("Compression");
+
+        IIOMetadataNode compressionTypeName = new IIOMetadataNode("CompressionTypeName");
+        compressionTypeName.setAttribute("value", "QOI");
+        compression.appendChild(compressionTypeName);
+
+        IIOMetadataNode lossless = new IIOMetadataNode("Lossless");
+        lossless.setAttribute("value", "TRUE");
+        compression.appendChild(lossless);
+
+        return compression;
+    }
+
+    @Override
+    protected IIOMetadataNode getStandardDataNode() {
+        IIOMetadataNode data = new IIOMetadataNode("Data");
+
+        IIOMetadataNode planarConfiguration = new IIOMetadataNode("PlanarConfiguration");
+        planarConfiguration.setAttribute("value", "PixelInterleaved");
+        data.appendChild(planarConfiguration);
+
+        IIOMetadataNode sampleFormat = new IIOMetadataNode("SampleFormat");
+        sampleFormat.setAttribute("value", "UnsignedIntegral");
+        data.appendChild(sampleFormat);
+
+        IIOMetadataNode bitsPerSample = new IIOMetadataNode("BitsPerSample");
+        bitsPerSample.setAttribute("value", this.header.hasAlpha() ? "8 8 8 8" : "8 8 8");
+        data.appendChild(bitsPerSample);
+
+        return data;
+    }
+
+    @Override
+    protected IIOMetadataNode getStandardDimensionNode() {
+        IIOMetadataNode dimension = new IIOMetadataNode("Dimension");
+
+        IIOMetadataNode imageOrientation = new IIOMetadataNode("ImageOrientation");
+        imageOrientation.setAttribute("value", "Normal");
+        dimension.appendChild(imageOrientation);
+
+        return dimension;
+    }
+
+    @Override
+    protected IIOMetadataNode getStandardTransparencyNode() {
+        IIOMetadataNode transparency = new IIOMetadataNode("Transparency");
+
+        IIOMetadataNode alpha = new IIOMetadataNode("Alpha");
+        alpha.setAttribute("value", this.header.hasAlpha() ? "nonpremultiplied" : "none");
+        transparency.appendChild(alpha);
+
+        return transparency;
+    }
+
+    @Override
+    public void mergeTree(String formatName, Node root) {
+        throw new IllegalStateException("Metadata is read-only");
+    }
+
+    @Override
+    public void reset() {
+        throw new IllegalStateException("Metadata is read-only");
+    }
+
+    private boolean isLinear() {
+        return this.header.colorSpace == QOIColorSpace.LINEAR;
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadataFormat;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import java.util.Arrays;
+
+/**
+ * Describes the native QOI image metadata tree.
+ *
+ * <pre>
+ * &lt;javax_imageio_qoi_image_1.0&gt;
+ *   &lt;QOIHeader width="..." height="..." channels="3|4" colorSpace="sRGB|linear"/&gt;
+ *   &lt;QOIPreview scale="..." width="..." height="..."/&gt; (only if the image read was reduced)
+ * &lt;/javax_imageio_qoi_image_1.0&gt;
+ * </pre>
+ */
+public final class QOIMetadataFormat extends IIOMetadataFormatImpl {
+
+    public static final String NATIVE_FORMAT_NAME = "javax_imageio_qoi_image_1.0";
+
+    static final String COLOR_SPACE_SRGB = "sRGB";
+    static final String COLOR_SPACE_LINEAR = "linear";
+
+    private static final IIOMetadataFormat INSTANCE = new QOIMetadataFormat();
+
+    private QOIMetadataFormat() {
+        super(NATIVE_FORMAT_NAME, CHILD_POLICY_SOME);
+
+        addElement("QOIHeader", NATIVE_FORMAT_NAME, CHILD_POLICY_EMPTY);
+        addAttribute("QOIHeader", "width", DATATYPE_INTEGER, true, null, "1", null, true, false);
+        addAttribute("QOIHeader", "height", DATATYPE_INTEGER, true, null, "1", null, true, false);
+        addAttribute("QOIHeader", "channels", DATATYPE_INTEGER, true, null, Arrays.asList("3", "4"));
+        addAttribute("QOIHeader", "colorSpace", DATATYPE_STRING, true, null, Arrays.asList(COLOR_SPACE_SRGB, COLOR_SPACE_LINEAR));
+
+        addElement("QOIPreview", NATIVE_FORMAT_NAME, CHILD_POLICY_EMPTY);
+        addAttribute("QOIPreview", "scale", DATATYPE_INTEGER, true, null, "2", null, true, false);
+        addAttribute("QOIPreview", "width", DATATYPE_INTEGER, true, null, "1", null, true, false);
+        addAttribute("QOIPreview", "height", DATATYPE_INTEGER, true, null, "1", null, true, false);
+    }
+
+    @Override
+    public boolean canNodeAppear(String elementName, ImageTypeSpecifier imageType) {
+        return true;
+    }
+
+    public static IIOMetadataFormat getInstance() {
+        return INSTANCE;
+    }
+
+}
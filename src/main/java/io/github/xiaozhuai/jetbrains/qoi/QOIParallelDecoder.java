@@ -0,0 +1,193 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decodes a QOI file held in a {@link ByteBuffer} on several threads.
+ * <p>
+ * The image is split into segments of whole rows, each starting at a checkpoint. Missing
+ * checkpoints are rebuilt by a scan on the calling thread, which only tracks the decoder
+ * state, while the segments whose start is known already decode on the pool. Every
+ * segment resumes from the exact serial decoder state, so the output is bit-identical.
+ */
+final class QOIParallelDecoder {
+
+    // Segments per pool thread, smooths out segments that compress differently
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    private final ByteBuffer data;
+    private final QOIHeader header;
+    private final QOICheckpointIndex checkpoints;
+
+    QOIParallelDecoder(@NotNull ByteBuffer data, @NotNull QOIHeader header, @NotNull QOICheckpointIndex checkpoints) {
+        this.data = data;
+        this.header = header;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Rows per segment for an image of the given height, a multiple of {@code interval}.
+     */
+    static int getSegmentRows(int height, int interval, int parallelism) {
+        int rows = (height + parallelism * SEGMENTS_PER_THREAD - 1) / (parallelism * SEGMENTS_PER_THREAD);
+
+        return Math.max((rows + interval - 1) / interval, 1) * interval;
+    }
+
+    /**
+     * Receives the rows decoded so far on the calling thread, top to bottom.
+     */
+    @FunctionalInterface
+    interface Listener {
+
+        /**
+         * @return false to stop decoding
+         */
+        boolean rowsDecoded(int y, int rows);
+
+    }
+
+    /**
+     * Decodes all pixels into {@code sink} and completes the checkpoint index. Every segment
+     * is passed to {@code listener} once it and all segments above it are done.
+     *
+     * @return false if the listener stopped the decode, the checkpoint index is then incomplete
+     */
+    boolean decode(@NotNull QOIRowSink sink, @NotNull ForkJoinPool pool, @NotNull Listener listener) throws IOException {
+        int height = this.header.height;
+        int interval = this.checkpoints.getInterval();
+        int segmentRows = getSegmentRows(height, interval, pool.getParallelism());
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        QOIDecoder scanner = null;
+        int scanRow = 0;
+
+        try {
+            for (int y = 0; y < height; y += segmentRows) {
+                if (!this.checkpoints.isComplete() && this.checkpoints.size() <= y / interval) {
+                    if (scanner == null) {
+                        scanner = new QOIDecoder(this.data);
+                        scanner.readHeader();
+
+                        int last = this.checkpoints.size() - 1;
+
+                        if (last > 0) {
+                            scanner.restoreCheckpoint(this.checkpoints, last);
+
+                            scanRow = this.checkpoints.getRow(last);
+                        }
+                    }
+
+                    scanRow = scan(scanner, scanRow, y);
+                }
+
+                int start = y;
+                int end = Math.min(y + segmentRows, height);
+
+                tasks.add(pool.submit(() -> {
+                    decodeSegment(sink, start, end);
+
+                    return null;
+                }));
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).get();
+
+                int start = i * segmentRows;
+
+                if (!listener.rowsDecoded(start, Math.min(segmentRows, height - start))) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while decoding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.cancel(false);
+            }
+
+            // Segments already running must not write into the image once it is returned
+            for (ForkJoinTask<?> task : tasks) {
+                task.quietlyJoin();
+            }
+        }
+    }
+
+    /**
+     * Advances the scanner from row {@code from} to row {@code to}, recording every checkpoint on the way.
+     */
+    private int scan(@NotNull QOIDecoder scanner, int from, int to) throws IOException {
+        int width = this.header.width;
+        int interval = this.checkpoints.getInterval();
+
+        for (int y = from; ; ) {
+            if (this.checkpoints.isNext(y)) {
+                scanner.saveCheckpoint(this.checkpoints);
+            }
+
+            if (y >= to) {
+                return y;
+            }
+
+            int next = Math.min(to, (y / interval + 1) * interval);
+
+            scanner.skipPixels((long) (next - y) * width);
+
+            y = next;
+        }
+    }
+
+    private void decodeSegment(@NotNull QOIRowSink sink, int start, int end) throws IOException {
+        int height = this.header.height;
+
+        QOIDecoder decoder = new QOIDecoder(this.data);
+        decoder.readHeader();
+
+        if (start > 0) {
+            decoder.restoreCheckpoint(this.checkpoints, start / this.checkpoints.getInterval());
+        }
+
+        if (end < height || this.checkpoints.isComplete()) {
+            sink.readRows(decoder, start, end - start);
+
+            return;
+        }
+
+        // The scan stops at the start of the last segment, which records the remaining
+        // checkpoints itself. No other thread adds checkpoints at this point.
+        int interval = this.checkpoints.getInterval();
+
+        for (int y = start; y < end; y += interval) {
+            if (this.checkpoints.isNext(y)) {
+                decoder.saveCheckpoint(this.checkpoints);
+            }
+
+            sink.readRows(decoder, y, Math.min(interval, end - y));
+        }
+
+        decoder.finish();
+
+        this.checkpoints.complete(decoder.getOffset());
+    }
+
+}
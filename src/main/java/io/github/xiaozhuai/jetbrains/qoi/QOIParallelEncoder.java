@@ -0,0 +1,336 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes a {@link QOIPixelSource} on several threads into one standard QOI stream.
+ * <p>
+ * The encoder state before any pixel only depends on the pixels before it: the previous
+ * pixel, the length of the run it ends, and for every index slot the last pixel that
+ * differed from its predecessor. A first parallel pass summarizes every stripe of rows,
+ * a cheap sequential prefix over the summaries gives the starting state of each stripe,
+ * and a second parallel pass encodes the stripes. A run crossing a stripe boundary is
+ * carried into the next stripe, so the concatenated output is byte-identical to a
+ * serial encode.
+ */
+final class QOIParallelEncoder {
+
+    // Stripes per pool thread, smooths out stripes that compress differently
+    private static final int STRIPES_PER_THREAD = 4;
+
+    // Most pixels in a stripe, bounds the memory held by stripes waiting to be written
+    private static final int STRIPE_PIXELS = 1 << 20;
+
+    // Stripes per pool thread encoded ahead of the one being written
+    private static final int PENDING_PER_THREAD = 2;
+
+    private final QOIPixelSource source;
+
+    private final int bufferSize;
+
+    private final QOIBufferPool pool;
+
+    /**
+     * Collects ops in chunks of {@code bufferSize} bytes, taken from {@code pool} unless it is null.
+     */
+    QOIParallelEncoder(@NotNull QOIPixelSource source, int bufferSize, QOIBufferPool pool) {
+        this.source = source;
+        this.bufferSize = bufferSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Receives the progress of an encode.
+     */
+    @FunctionalInterface
+    interface Progress {
+
+        /**
+         * Called after every stripe written, with the number of rows written so far.
+         *
+         * @return whether to go on, otherwise the remaining stripes are dropped
+         */
+        boolean stripeWritten(int rows);
+
+    }
+
+    /**
+     * Encodes the whole image, header and end marker included. Stripes are written in order
+     * as soon as they are encoded, and only a few stripes are encoded ahead of the output.
+     *
+     * @return whether the image was completed, false if {@code progress} stopped it
+     */
+    boolean encode(@NotNull OutputStream output, @NotNull ForkJoinPool pool, @NotNull Progress progress) throws IOException {
+        int width = this.source.getWidth();
+        int height = this.source.getHeight();
+
+        int stripeRows = Math.min(
+                (height + pool.getParallelism() * STRIPES_PER_THREAD - 1) / (pool.getParallelism() * STRIPES_PER_THREAD),
+                Math.max(1, STRIPE_PIXELS / width));
+        int stripes = (height + stripeRows - 1) / stripeRows;
+        int pending = pool.getParallelism() * PENDING_PER_THREAD;
+
+        List<ForkJoinTask<Summary>> summaries = new ArrayList<>(stripes);
+        List<ForkJoinTask<Stripe>> encoded = new ArrayList<>(stripes);
+
+        try {
+            for (int i = 0; i < stripes; i++) {
+                int start = i * stripeRows;
+                int end = Math.min(start + stripeRows, height);
+
+                summaries.add(pool.submit(() -> summarize(start, end)));
+            }
+
+            // Prefix over the summaries, the state before the first pixel is the initial one
+            int pixel = QOIEncoder.INITIAL_PIXEL;
+            long run = 0;
+            int[] index = new int[64];
+
+            for (int i = 0; i < stripes; i++) {
+                while (encoded.size() < stripes && encoded.size() - i < pending) {
+                    int next = encoded.size();
+                    int start = next * stripeRows;
+                    int end = Math.min(start + stripeRows, height);
+
+                    int startPixel = pixel;
+                    int startRun = (int) (run % QOIEncoder.MAX_RUN);
+                    int[] startIndex = index.clone();
+
+                    encoded.add(pool.submit(() -> encodeStripe(start, end, startPixel, startRun, startIndex)));
+
+                    Summary summary = summaries.get(next).get();
+
+                    pixel = summary.lastPixel;
+                    run = summary.allRun ? run + (long) (end - start) * width : summary.trailingRun;
+
+                    for (int slot = 0; slot < 64; slot++) {
+                        if ((summary.slots & 1L << slot) != 0) {
+                            index[slot] = summary.index[slot];
+                        }
+                    }
+                }
+
+                Stripe stripe = encoded.get(i).get();
+
+                try {
+                    stripe.writeTo(output);
+                } finally {
+                    stripe.free();
+                }
+
+                if (!progress.stripeWritten(Math.min((i + 1) * stripeRows, height))) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while encoding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        } finally {
+            for (ForkJoinTask<?> task : summaries) {
+                task.cancel(false);
+            }
+
+            for (ForkJoinTask<?> task : encoded) {
+                task.cancel(false);
+            }
+
+            // Tasks already running must not read the source once the caller gets it back
+            for (ForkJoinTask<?> task : summaries) {
+                task.quietlyJoin();
+            }
+
+            // Stripes encoded but not written give their chunks back, freeing twice is harmless
+            for (ForkJoinTask<Stripe> task : encoded) {
+                task.quietlyJoin();
+
+                if (task.isCompletedNormally()) {
+                    task.join().free();
+                }
+            }
+        }
+    }
+
+    private Summary summarize(int start, int end) {
+        int width = this.source.getWidth();
+        int[] row = QOIBufferPool.allocateInts(this.pool, width);
+
+        Summary summary = new Summary();
+
+        try {
+            int prev = QOIEncoder.INITIAL_PIXEL;
+
+            if (start > 0) {
+                this.source.readRow(start - 1, row);
+
+                prev = row[width - 1];
+            }
+
+            long run = 0;
+            boolean allRun = true;
+
+            for (int y = start; y < end; y++) {
+                this.source.readRow(y, row);
+
+                for (int x = 0; x < width; x++) {
+                    int px = row[x];
+
+                    if (px == prev) {
+                        run++;
+                    } else {
+                        int slot = QOIDecoder.hash(px);
+
+                        summary.index[slot] = px;
+                        summary.slots |= 1L << slot;
+
+                        run = 0;
+                        allRun = false;
+                        prev = px;
+                    }
+                }
+            }
+
+            summary.lastPixel = prev;
+            summary.trailingRun = run;
+            summary.allRun = allRun;
+        } finally {
+            QOIBufferPool.free(this.pool, row);
+        }
+
+        return summary;
+    }
+
+    private @NotNull Stripe encodeStripe(int start, int end, int pixel, int run, int @NotNull [] index) throws IOException {
+        int width = this.source.getWidth();
+        int height = this.source.getHeight();
+
+        byte[] buffer = QOIBufferPool.allocateBytes(this.pool, this.bufferSize);
+        int[] row = QOIBufferPool.allocateInts(this.pool, width);
+
+        Stripe output = new Stripe();
+
+        try {
+            QOIEncoder encoder = new QOIEncoder(output, buffer);
+
+            if (start == 0) {
+                encoder.writeHeader(width, height, this.source.getChannels(), this.source.getColorSpace());
+            }
+
+            encoder.setState(pixel, run, index);
+
+            for (int y = start; y < end; y++) {
+                this.source.readRow(y, row);
+
+                encoder.encode(row, 0, width);
+            }
+
+            if (end == height) {
+                encoder.finish();
+            } else {
+                // The pending run continues in the next stripe
+                encoder.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            output.free();
+
+            throw e;
+        } finally {
+            QOIBufferPool.free(this.pool, buffer);
+            QOIBufferPool.free(this.pool, row);
+        }
+
+        return output;
+    }
+
+    /**
+     * Encoded ops of a stripe, held in chunks from the buffer pool until the stripe is written.
+     */
+    private final class Stripe extends OutputStream {
+
+        private final List<byte[]> chunks = new ArrayList<>();
+
+        // Bytes used in the last chunk
+        private int position;
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) {
+            while (len > 0) {
+                byte[] chunk = this.chunks.isEmpty() ? null : this.chunks.get(this.chunks.size() - 1);
+
+                if (chunk == null || this.position == chunk.length) {
+                    chunk = QOIBufferPool.allocateBytes(QOIParallelEncoder.this.pool, QOIParallelEncoder.this.bufferSize);
+
+                    this.chunks.add(chunk);
+                    this.position = 0;
+                }
+
+                int count = Math.min(len, chunk.length - this.position);
+
+                System.arraycopy(b, off, chunk, this.position, count);
+
+                this.position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        void writeTo(@NotNull OutputStream output) throws IOException {
+            for (int i = 0; i < this.chunks.size(); i++) {
+                byte[] chunk = this.chunks.get(i);
+
+                output.write(chunk, 0, i < this.chunks.size() - 1 ? chunk.length : this.position);
+            }
+        }
+
+        /**
+         * Gives the chunks back to the pool, the stripe is empty afterwards.
+         */
+        void free() {
+            for (byte[] chunk : this.chunks) {
+                QOIBufferPool.free(QOIParallelEncoder.this.pool, chunk);
+            }
+
+            this.chunks.clear();
+            this.position = 0;
+        }
+
+    }
+
+    private static final class Summary {
+
+        // Last pixel that differed from its predecessor, per index slot
+        final int[] index = new int[64];
+        long slots;
+
+        int lastPixel;
+
+        // Trailing pixels equal to their predecessor
+        long trailingRun;
+
+        // Whether every pixel equals its predecessor
+        boolean allRun;
+
+    }
+
+}
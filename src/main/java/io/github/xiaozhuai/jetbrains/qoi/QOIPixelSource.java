@@ -0,0 +1,77 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import me.saharnooby.qoi.QOIImage;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Pixels to encode, provided a row at a time as packed {@code 0xRRGGBBAA} ints.
+ * <p>
+ * Rows may be requested in any order and from several threads at once.
+ */
+interface QOIPixelSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getChannels();
+
+    QOIColorSpace getColorSpace();
+
+    /**
+     * Fills {@code rgba[0, width)} with row {@code y}. Images without alpha report 255.
+     */
+    void readRow(int y, int @NotNull [] rgba);
+
+    static QOIPixelSource of(@NotNull QOIImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int channels = image.getChannels();
+        byte[] pixelData = image.getPixelData();
+
+        return new QOIPixelSource() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public int getChannels() {
+                return channels;
+            }
+
+            @Override
+            public QOIColorSpace getColorSpace() {
+                return image.getColorSpace();
+            }
+
+            @Override
+            public void readRow(int y, int @NotNull [] rgba) {
+                int j = y * width * channels;
+
+                if (channels == 4) {
+                    for (int x = 0; x < width; x++, j += 4) {
+                        rgba[x] = (pixelData[j] & 0xff) << 24 |
+                                (pixelData[j + 1] & 0xff) << 16 |
+                                (pixelData[j + 2] & 0xff) << 8 |
+                                (pixelData[j + 3] & 0xff);
+                    }
+                } else {
+                    for (int x = 0; x < width; x++, j += 3) {
+                        rgba[x] = (pixelData[j] & 0xff) << 24 |
+                                (pixelData[j + 1] & 0xff) << 16 |
+                                (pixelData[j + 2] & 0xff) << 8 |
+                                0xff;
+                    }
+                }
+            }
+        };
+    }
+
+}
@@ -2,6 +2,7 @@ package io.github.xiaozhuai.jetbrains.qoi;
 
 final class QOIPluginConstants {
     static final byte[] QOI_HEADER = {'q', 'o', 'i', 'f'};
+    static final byte[] QOI_END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
     static final String QOI_VENDOR_NAME = "QOI";
     static final String QOI_VERSION = "1.2.1";
     static final String QOI_EXTENSION = "qoi";
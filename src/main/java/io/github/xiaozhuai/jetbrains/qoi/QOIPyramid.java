@@ -0,0 +1,135 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Mipmap pyramid built while the rows of an image stream through: level {@code n} is the image
+ * reduced {@code 2^n} times, every level averaging 2x2 blocks of the one above it.
+ * <p>
+ * Levels are kept as interleaved RGB(A) bytes in the color space of the file. Levels larger
+ * than the budget are computed, to build the smaller ones, but not kept.
+ */
+final class QOIPyramid {
+
+    private final int channels;
+
+    // Level sizes, index 0 is the image itself
+    private final int[] widths;
+    private final int[] heights;
+
+    // filters[n] reduces level n into level n + 1
+    private final QOIBoxFilter[] filters;
+
+    // Rows added to each level so far
+    private final int[] rows;
+
+    // Kept levels, null for the image itself and for levels over the budget
+    private final byte[][] levels;
+
+    // Row buffers of levels that are not kept
+    private final byte[][] buffers;
+
+    private final int[] rgba;
+
+    QOIPyramid(int width, int height, int channels, long maxBytes) {
+        int count = getLevelCount(width, height);
+
+        this.channels = channels;
+        this.widths = new int[count + 1];
+        this.heights = new int[count + 1];
+        this.filters = new QOIBoxFilter[count];
+        this.rows = new int[count + 1];
+        this.levels = new byte[count + 1][];
+        this.buffers = new byte[count + 1][];
+
+        for (int level = 0; level <= count; level++) {
+            this.widths[level] = QOIBoxFilter.getReducedSize(width, 1 << level);
+            this.heights[level] = QOIBoxFilter.getReducedSize(height, 1 << level);
+
+            if (level == 0) {
+                continue;
+            }
+
+            this.filters[level - 1] = new QOIBoxFilter(this.widths[level - 1], channels, 2);
+
+            long size = (long) this.widths[level] * this.heights[level] * channels;
+
+            if (size <= maxBytes && size <= Integer.MAX_VALUE - 8) {
+                this.levels[level] = new byte[(int) size];
+            } else {
+                this.buffers[level] = new byte[this.widths[level] * channels];
+            }
+        }
+
+        this.rgba = new int[this.widths[Math.min(count, 1)]];
+    }
+
+    /**
+     * @return the number of levels below the image itself, down to a single pixel
+     */
+    static int getLevelCount(int width, int height) {
+        int count = 0;
+
+        while (QOIBoxFilter.getReducedSize(width, 1 << count) > 1 || QOIBoxFilter.getReducedSize(height, 1 << count) > 1) {
+            count++;
+        }
+
+        return count;
+    }
+
+    int getLevelCount() {
+        return this.filters.length;
+    }
+
+    int getWidth(int level) {
+        return this.widths[level];
+    }
+
+    int getHeight(int level) {
+        return this.heights[level];
+    }
+
+    /**
+     * @return the pixels of {@code level} as interleaved RGB(A) bytes, or null if it was over the budget
+     */
+    byte[] getLevel(int level) {
+        return this.levels[level];
+    }
+
+    /**
+     * Adds the next row of the image, as interleaved RGB(A) bytes starting at {@code offset}.
+     */
+    void addRow(byte @NotNull [] row, int offset) {
+        int level = 0;
+
+        while (level < this.filters.length) {
+            this.filters[level].addRow(row, offset);
+
+            int y = this.rows[level]++;
+
+            // Only every other row completes a row of the next level
+            if (y % 2 == 0 && y != this.heights[level] - 1) {
+                return;
+            }
+
+            level++;
+
+            int next = this.rows[level];
+
+            if (this.levels[level] != null) {
+                row = this.levels[level];
+                offset = next * this.widths[level] * this.channels;
+            } else {
+                row = this.buffers[level];
+                offset = 0;
+            }
+
+            this.filters[level - 1].readRow(row, offset, this.rgba);
+
+            if (level == this.filters.length) {
+                this.rows[level]++;
+            }
+        }
+    }
+
+}
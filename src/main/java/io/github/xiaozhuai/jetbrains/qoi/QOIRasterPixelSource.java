@@ -0,0 +1,679 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+
+/**
+ * Reads the pixels of an image straight from its raster, a row at a time, so that
+ * encoding never needs a converted copy of the whole image.
+ * <p>
+ * Common layouts are read directly from the backing {@code int[]} or {@code byte[]},
+ * honoring band order, pixel stride and scanline stride. Anything else goes through
+ * the {@link ColorModel}.
+ */
+abstract class QOIRasterPixelSource implements QOIPixelSource {
+
+    final Raster raster;
+    final int width;
+    final int height;
+    final int channels;
+    final boolean premultiplied;
+
+    QOIRasterPixelSource(@NotNull Raster raster, @NotNull ColorModel colorModel) {
+        this.raster = raster;
+        this.width = raster.getWidth();
+        this.height = raster.getHeight();
+        this.channels = colorModel.getTransparency() != Transparency.OPAQUE ? 4 : 3;
+        this.premultiplied = colorModel.isAlphaPremultiplied();
+    }
+
+    static QOIPixelSource of(@NotNull RenderedImage image) {
+        if (image instanceof BufferedImage) {
+            return of(((BufferedImage) image).getRaster(), image.getColorModel());
+        }
+
+        return of(image.getData(), image.getColorModel());
+    }
+
+    /**
+     * Takes the samples of a raster with 3 or 4 bands as straight sRGB(A), truncated to 8 bits.
+     */
+    static QOIPixelSource of(@NotNull Raster raster) {
+        int bands = raster.getNumBands();
+
+        if (bands != 3 && bands != 4) {
+            throw new IllegalArgumentException("Band count not supported");
+        }
+
+        ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                bands == 4,
+                false,
+                bands == 4 ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE
+        );
+
+        SampleModel model = raster.getSampleModel();
+
+        if (model instanceof ComponentSampleModel &&
+                raster.getDataBuffer() instanceof DataBufferByte &&
+                isSingleBank((ComponentSampleModel) model)) {
+            return new ByteInterleavedSource(raster, colorModel);
+        }
+
+        return new SampleSource(raster, colorModel);
+    }
+
+    static QOIPixelSource of(@NotNull Raster raster, @NotNull ColorModel colorModel) {
+        SampleModel model = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        if (colorModel instanceof IndexColorModel &&
+                buffer instanceof DataBufferByte &&
+                buffer.getNumBanks() == 1 &&
+                (model instanceof MultiPixelPackedSampleModel ||
+                        model instanceof ComponentSampleModel && model.getNumBands() == 1 && model.getSampleSize(0) == 8)) {
+            return new IndexedSource(raster, (IndexColorModel) colorModel);
+        }
+
+        if (colorModel instanceof ComponentColorModel &&
+                colorModel.getNumComponents() == 1 &&
+                colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY &&
+                model instanceof ComponentSampleModel &&
+                buffer instanceof DataBufferUShort &&
+                buffer.getNumBanks() == 1) {
+            int[] table = UShortGraySource.getTable(colorModel, (long) raster.getWidth() * raster.getHeight());
+
+            // Converting fewer pixels than the table has entries is cheaper one at a time
+            return table != null ? new UShortGraySource(raster, colorModel, table) : new ColorModelSource(raster, colorModel);
+        }
+
+        // An alpha band is only encoded when the color model is not opaque
+        if (colorModel.hasAlpha() != (colorModel.getTransparency() != Transparency.OPAQUE) ||
+                !hasBytesPerComponent(colorModel)) {
+            return new ColorModelSource(raster, colorModel);
+        }
+
+        if (colorModel instanceof DirectColorModel &&
+                colorModel.getColorSpace().isCS_sRGB() &&
+                model instanceof SinglePixelPackedSampleModel &&
+                buffer instanceof DataBufferInt &&
+                buffer.getNumBanks() == 1) {
+            return new IntPackedSource(raster, (DirectColorModel) colorModel);
+        }
+
+        if (isByteInterleaved(model, colorModel)) {
+            return new ByteInterleavedSource(raster, colorModel);
+        }
+
+        return new ColorModelSource(raster, colorModel);
+    }
+
+    /**
+     * Prepares the conversion of {@code pixels} pixels of {@code colorModel} split over several
+     * rasters, such as the tiles of an image, each of which may be too small to be worth it.
+     */
+    static void prepare(@NotNull ColorModel colorModel, long pixels) {
+        if (colorModel instanceof ComponentColorModel &&
+                colorModel.getNumComponents() == 1 &&
+                colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY &&
+                colorModel.getTransferType() == DataBuffer.TYPE_USHORT) {
+            UShortGraySource.getTable(colorModel, pixels);
+        }
+    }
+
+    /**
+     * @return the color space the pixels of an image with these models are encoded in. Linear RGB
+     * samples read directly are kept as is, anything converted through the color model is sRGB.
+     */
+    static QOIColorSpace getColorSpace(@NotNull SampleModel model, @NotNull ColorModel colorModel) {
+        return isByteInterleaved(model, colorModel) && isLinear(colorModel.getColorSpace()) ? QOIColorSpace.LINEAR : QOIColorSpace.SRGB;
+    }
+
+    private static boolean isByteInterleaved(@NotNull SampleModel model, @NotNull ColorModel colorModel) {
+        return colorModel instanceof ComponentColorModel &&
+                colorModel.hasAlpha() == (colorModel.getTransparency() != Transparency.OPAQUE) &&
+                hasBytesPerComponent(colorModel) &&
+                isSupported(colorModel.getColorSpace(), colorModel.getNumComponents(), colorModel.hasAlpha()) &&
+                model instanceof ComponentSampleModel &&
+                model.getDataType() == DataBuffer.TYPE_BYTE &&
+                isSingleBank((ComponentSampleModel) model);
+    }
+
+    private static boolean isLinear(@NotNull ColorSpace colorSpace) {
+        return colorSpace == ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB);
+    }
+
+    /**
+     * @return offset in the data buffer bank of sample {@code band} of the first pixel
+     */
+    static int getOffset(@NotNull Raster raster, int band) {
+        int x = raster.getMinX() - raster.getSampleModelTranslateX();
+        int y = raster.getMinY() - raster.getSampleModelTranslateY();
+
+        SampleModel model = raster.getSampleModel();
+        int offset = raster.getDataBuffer().getOffset();
+
+        if (model instanceof ComponentSampleModel) {
+            return offset + ((ComponentSampleModel) model).getOffset(x, y, band);
+        }
+
+        if (model instanceof SinglePixelPackedSampleModel) {
+            return offset + ((SinglePixelPackedSampleModel) model).getOffset(x, y);
+        }
+
+        return offset + ((MultiPixelPackedSampleModel) model).getOffset(x, y);
+    }
+
+    private static boolean hasBytesPerComponent(@NotNull ColorModel colorModel) {
+        for (int size : colorModel.getComponentSize()) {
+            if (size != 8) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isSupported(@NotNull ColorSpace colorSpace, int components, boolean hasAlpha) {
+        int colors = hasAlpha ? components - 1 : components;
+
+        if (colors == 1) {
+            return colorSpace.getType() == ColorSpace.TYPE_GRAY;
+        }
+
+        // Linear RGB is kept as is and tagged linear, like the decoder reads linear QOI files
+        return colors == 3 && (colorSpace.isCS_sRGB() || isLinear(colorSpace));
+    }
+
+    private static boolean isSingleBank(@NotNull ComponentSampleModel model) {
+        for (int bank : model.getBankIndices()) {
+            if (bank != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Converts premultiplied {@code 0xRRGGBBAA} pixels to straight alpha in place.
+     */
+    static void unpremultiply(int @NotNull [] rgba, int count) {
+        byte[] table = Unpremultiply.TABLE;
+
+        for (int x = 0; x < count; x++) {
+            int px = rgba[x];
+            int a = px & 0xff;
+
+            if (a != 0xff) {
+                int row = a << 8;
+
+                rgba[x] = (table[row | px >>> 24] & 0xff) << 24 |
+                        (table[row | (px >>> 16 & 0xff)] & 0xff) << 16 |
+                        (table[row | (px >>> 8 & 0xff)] & 0xff) << 8 |
+                        a;
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getChannels() {
+        return this.channels;
+    }
+
+    @Override
+    public QOIColorSpace getColorSpace() {
+        return QOIColorSpace.SRGB;
+    }
+
+    /**
+     * {@code TYPE_INT_ARGB}, {@code TYPE_INT_ARGB_PRE}, {@code TYPE_INT_RGB},
+     * {@code TYPE_INT_BGR} and any other 8 bits per component {@link DirectColorModel}.
+     */
+    private static final class IntPackedSource extends QOIRasterPixelSource {
+
+        private final int[] data;
+        private final int offset;
+        private final int scanlineStride;
+
+        private final int redShift;
+        private final int greenShift;
+        private final int blueShift;
+        private final int alphaShift;
+
+        IntPackedSource(@NotNull Raster raster, @NotNull DirectColorModel colorModel) {
+            super(raster, colorModel);
+
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBuffer buffer = raster.getDataBuffer();
+
+            this.data = ((DataBufferInt) buffer).getData();
+            this.offset = getOffset(raster, 0);
+            this.scanlineStride = model.getScanlineStride();
+
+            this.redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+            this.greenShift = Integer.numberOfTrailingZeros(colorModel.getGreenMask());
+            this.blueShift = Integer.numberOfTrailingZeros(colorModel.getBlueMask());
+            this.alphaShift = this.channels == 4 ? Integer.numberOfTrailingZeros(colorModel.getAlphaMask()) : -1;
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            readPackedRow(y, rgba);
+
+            if (this.premultiplied) {
+                unpremultiply(rgba, this.width);
+            }
+        }
+
+        private void readPackedRow(int y, int @NotNull [] rgba) {
+            int[] data = this.data;
+            int width = this.width;
+            int j = this.offset + y * this.scanlineStride;
+
+            boolean rgbOrder = this.redShift == 16 && this.greenShift == 8 && this.blueShift == 0;
+
+            if (rgbOrder && this.alphaShift == 24) {
+                // 0xAARRGGBB
+                for (int x = 0; x < width; x++) {
+                    int v = data[j + x];
+
+                    rgba[x] = v << 8 | v >>> 24;
+                }
+
+                return;
+            }
+
+            if (rgbOrder && this.alphaShift < 0) {
+                // 0x..RRGGBB
+                for (int x = 0; x < width; x++) {
+                    rgba[x] = data[j + x] << 8 | 0xff;
+                }
+
+                return;
+            }
+
+            int rs = this.redShift;
+            int gs = this.greenShift;
+            int bs = this.blueShift;
+            int as = this.alphaShift;
+
+            for (int x = 0; x < width; x++) {
+                int v = data[j + x];
+
+                rgba[x] = (v >>> rs & 0xff) << 24 |
+                        (v >>> gs & 0xff) << 16 |
+                        (v >>> bs & 0xff) << 8 |
+                        (as < 0 ? 0xff : v >>> as & 0xff);
+            }
+        }
+
+    }
+
+    /**
+     * {@code TYPE_3BYTE_BGR}, {@code TYPE_4BYTE_ABGR}, {@code TYPE_4BYTE_ABGR_PRE},
+     * {@code TYPE_BYTE_GRAY}, the RGB(A) images created by the reader and any other
+     * 8 bits per component {@link ComponentColorModel} with RGB or gray components
+     * stored in one bank.
+     */
+    private static final class ByteInterleavedSource extends QOIRasterPixelSource {
+
+        private final byte[] data;
+        private final int pixelStride;
+        private final int scanlineStride;
+
+        // Position of each band of the first pixel, in color model order
+        private final int[] offsets;
+
+        private final QOIColorSpace colorSpace;
+
+        ByteInterleavedSource(@NotNull Raster raster, @NotNull ColorModel colorModel) {
+            super(raster, colorModel);
+
+            this.colorSpace = isLinear(colorModel.getColorSpace()) ? QOIColorSpace.LINEAR : QOIColorSpace.SRGB;
+
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+
+            this.data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            this.pixelStride = model.getPixelStride();
+            this.scanlineStride = model.getScanlineStride();
+            this.offsets = new int[model.getNumBands()];
+
+            for (int i = 0; i < this.offsets.length; i++) {
+                this.offsets[i] = getOffset(raster, i);
+            }
+        }
+
+        @Override
+        public QOIColorSpace getColorSpace() {
+            return this.colorSpace;
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            byte[] data = this.data;
+            int width = this.width;
+            int step = this.pixelStride;
+            int row = y * this.scanlineStride;
+
+            switch (this.offsets.length) {
+                case 4: {
+                    int r = this.offsets[0] + row;
+                    int g = this.offsets[1] + row;
+                    int b = this.offsets[2] + row;
+                    int a = this.offsets[3] + row;
+
+                    for (int x = 0; x < width; x++, r += step, g += step, b += step, a += step) {
+                        rgba[x] = (data[r] & 0xff) << 24 | (data[g] & 0xff) << 16 | (data[b] & 0xff) << 8 | (data[a] & 0xff);
+                    }
+
+                    break;
+                }
+                case 3: {
+                    int r = this.offsets[0] + row;
+                    int g = this.offsets[1] + row;
+                    int b = this.offsets[2] + row;
+
+                    for (int x = 0; x < width; x++, r += step, g += step, b += step) {
+                        rgba[x] = (data[r] & 0xff) << 24 | (data[g] & 0xff) << 16 | (data[b] & 0xff) << 8 | 0xff;
+                    }
+
+                    break;
+                }
+                case 2: {
+                    int v = this.offsets[0] + row;
+                    int a = this.offsets[1] + row;
+
+                    for (int x = 0; x < width; x++, v += step, a += step) {
+                        rgba[x] = (data[v] & 0xff) * 0x01010100 | (data[a] & 0xff);
+                    }
+
+                    break;
+                }
+                default: {
+                    int v = this.offsets[0] + row;
+
+                    for (int x = 0; x < width; x++, v += step) {
+                        rgba[x] = (data[v] & 0xff) * 0x01010100 | 0xff;
+                    }
+
+                    break;
+                }
+            }
+
+            if (this.premultiplied) {
+                unpremultiply(rgba, this.width);
+            }
+        }
+
+    }
+
+    /**
+     * {@code TYPE_BYTE_INDEXED}, {@code TYPE_BYTE_BINARY} and any other byte backed
+     * {@link IndexColorModel} image, converted through a palette resolved once.
+     */
+    private static final class IndexedSource extends QOIRasterPixelSource {
+
+        private final byte[] data;
+        private final int offset;
+        private final int scanlineStride;
+
+        // Bits per pixel, bytes are pixelStride apart when it is 8
+        private final int bits;
+        private final int pixelStride;
+        private final int bitOffset;
+
+        private final int[] palette;
+
+        IndexedSource(@NotNull Raster raster, @NotNull IndexColorModel colorModel) {
+            super(raster, colorModel);
+
+            SampleModel model = raster.getSampleModel();
+
+            this.data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            this.offset = getOffset(raster, 0);
+
+            if (model instanceof MultiPixelPackedSampleModel) {
+                MultiPixelPackedSampleModel packed = (MultiPixelPackedSampleModel) model;
+
+                this.scanlineStride = packed.getScanlineStride();
+                this.bits = packed.getPixelBitStride();
+                this.pixelStride = 1;
+                this.bitOffset = packed.getBitOffset(raster.getMinX() - raster.getSampleModelTranslateX());
+            } else {
+                ComponentSampleModel component = (ComponentSampleModel) model;
+
+                this.scanlineStride = component.getScanlineStride();
+                this.bits = 8;
+                this.pixelStride = component.getPixelStride();
+                this.bitOffset = 0;
+            }
+
+            // Every index a sample can hold, indices past the map are transparent black like in the color model
+            this.palette = new int[1 << this.bits];
+
+            int alpha = this.channels == 4 ? 0 : 0xff;
+            int size = Math.min(colorModel.getMapSize(), this.palette.length);
+
+            for (int i = 0; i < size; i++) {
+                int argb = colorModel.getRGB(i);
+
+                this.palette[i] = argb << 8 | argb >>> 24 | alpha;
+            }
+
+            for (int i = size; i < this.palette.length; i++) {
+                this.palette[i] = alpha;
+            }
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            byte[] data = this.data;
+            int[] palette = this.palette;
+            int width = this.width;
+            int j = this.offset + y * this.scanlineStride;
+
+            if (this.bits == 8) {
+                int step = this.pixelStride;
+
+                for (int x = 0; x < width; x++, j += step) {
+                    rgba[x] = palette[data[j] & 0xff];
+                }
+
+                return;
+            }
+
+            // Pixels are packed from the most significant bit
+            int bits = this.bits;
+            int mask = (1 << bits) - 1;
+
+            for (int x = 0, bit = this.bitOffset; x < width; x++, bit += bits) {
+                int value = data[j + (bit >>> 3)] >>> (8 - bits - (bit & 7));
+
+                rgba[x] = palette[value & mask];
+            }
+        }
+
+    }
+
+    /**
+     * {@code TYPE_USHORT_GRAY} and any other single band gray image over shorts. The
+     * color model conversion of every 16-bit value is resolved once, and shared by the
+     * rasters of the same color model, such as the tiles of an image.
+     */
+    private static final class UShortGraySource extends QOIRasterPixelSource {
+
+        private static final int TABLE_SIZE = 1 << 16;
+
+        // Table of the last color model
+        private static volatile GrayTable lastTable;
+
+        private final short[] data;
+        private final int offset;
+        private final int pixelStride;
+        private final int scanlineStride;
+
+        private final int[] table;
+
+        UShortGraySource(@NotNull Raster raster, @NotNull ColorModel colorModel, int @NotNull [] table) {
+            super(raster, colorModel);
+
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+
+            this.data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+            this.offset = getOffset(raster, 0);
+            this.pixelStride = model.getPixelStride();
+            this.scanlineStride = model.getScanlineStride();
+            this.table = table;
+        }
+
+        /**
+         * @return the table of {@code colorModel}, built if there are at least as many {@code pixels}
+         * to convert as it has entries, or null
+         */
+        static int[] getTable(@NotNull ColorModel colorModel, long pixels) {
+            GrayTable last = lastTable;
+
+            if (last != null && last.colorModel == colorModel) {
+                return last.table;
+            }
+
+            if (pixels < TABLE_SIZE) {
+                return null;
+            }
+
+            int[] table = new int[TABLE_SIZE];
+            short[] sample = new short[1];
+
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                sample[0] = (short) i;
+
+                int argb = colorModel.getRGB(sample);
+
+                table[i] = argb << 8 | 0xff;
+            }
+
+            lastTable = new GrayTable(colorModel, table);
+
+            return table;
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            short[] data = this.data;
+            int[] table = this.table;
+            int step = this.pixelStride;
+            int j = this.offset + y * this.scanlineStride;
+
+            for (int x = 0; x < this.width; x++, j += step) {
+                rgba[x] = table[data[j] & 0xffff];
+            }
+        }
+
+    }
+
+    private static final class GrayTable {
+
+        private final ColorModel colorModel;
+
+        private final int[] table;
+
+        GrayTable(@NotNull ColorModel colorModel, int @NotNull [] table) {
+            this.colorModel = colorModel;
+            this.table = table;
+        }
+
+    }
+
+    /**
+     * Raw samples of any other raster, read a row at a time through its sample model.
+     */
+    private static final class SampleSource extends QOIRasterPixelSource {
+
+        SampleSource(@NotNull Raster raster, @NotNull ColorModel colorModel) {
+            super(raster, colorModel);
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            // Allocated per row, rows may be read from several threads
+            int[] samples = this.raster.getPixels(this.raster.getMinX(), this.raster.getMinY() + y, this.width, 1, (int[]) null);
+
+            int bands = this.channels;
+
+            for (int x = 0, s = 0; x < this.width; x++, s += bands) {
+                rgba[x] = (samples[s] & 0xff) << 24 |
+                        (samples[s + 1] & 0xff) << 16 |
+                        (samples[s + 2] & 0xff) << 8 |
+                        (bands == 4 ? samples[s + 3] & 0xff : 0xff);
+            }
+        }
+
+    }
+
+    /**
+     * Any other image, converted to sRGB one pixel at a time. Slowest.
+     */
+    private static final class ColorModelSource extends QOIRasterPixelSource {
+
+        private final ColorModel colorModel;
+
+        ColorModelSource(@NotNull Raster raster, @NotNull ColorModel colorModel) {
+            super(raster, colorModel);
+
+            this.colorModel = colorModel;
+        }
+
+        @Override
+        public void readRow(int y, int @NotNull [] rgba) {
+            int minX = this.raster.getMinX();
+            int rowY = this.raster.getMinY() + y;
+            int alpha = this.channels == 4 ? 0 : 0xff;
+
+            Object pixel = null;
+
+            for (int x = 0; x < this.width; x++) {
+                pixel = this.raster.getDataElements(minX + x, rowY, pixel);
+
+                int argb = this.colorModel.getRGB(pixel);
+
+                rgba[x] = argb << 8 | argb >>> 24 | alpha;
+            }
+        }
+
+    }
+
+    /**
+     * Straight color for every premultiplied color and alpha, indexed by {@code alpha << 8 | color}.
+     */
+    private static final class Unpremultiply {
+
+        static final byte[] TABLE = new byte[256 * 256];
+
+        static {
+            for (int a = 1; a < 256; a++) {
+                for (int c = 0; c < 256; c++) {
+                    // Same rounding as DirectColorModel
+                    TABLE[a << 8 | c] = (byte) Math.min((int) (c * 255.0f / a + 0.5f), 255);
+                }
+            }
+        }
+
+    }
+
+}
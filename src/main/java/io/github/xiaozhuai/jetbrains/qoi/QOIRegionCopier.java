@@ -0,0 +1,311 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Copies decoded RGB(A) rows into a destination raster, applying the source region,
+ * subsampling and band selection of an {@link javax.imageio.ImageReadParam}.
+ * <p>
+ * Rows are copied directly between the backing arrays, using {@link System#arraycopy}
+ * when both sides share the same layout and there is no subsampling. Color samples are
+ * premultiplied if the destination is premultiplied and its alpha band is copied.
+ */
+final class QOIRegionCopier {
+
+    private final int channels;
+
+    // Source pixels: sourceX + i * xSubsampling, i in [0, count)
+    private final int sourceX;
+    private final int xSubsampling;
+    private final int count;
+
+    // Source rows: sourceY + k * ySubsampling, k in [0, rows)
+    private final int sourceY;
+    private final int ySubsampling;
+    private final int rows;
+
+    // Position of the first copied pixel in the destination raster
+    private final int destX;
+    private final int destY;
+
+    // sourceBands[i] is copied into destBands[i]
+    private final int[] sourceBands;
+    private final int[] destBands;
+
+    private final WritableRaster dest;
+
+    // Source band copied into the alpha band of a premultiplied destination, -1 if none
+    private final int alphaSourceBand;
+
+    // Premultiplied copy of the selected pixels of a row
+    private byte[] premultiplied;
+
+    // ComponentSampleModel over bytes
+    private byte[][] bytesBanks;
+    private int[] bytesOffsets;
+    private int pixelStride;
+    private int scanlineStride;
+    private boolean sameLayout;
+
+    // SinglePixelPackedSampleModel over ints
+    private int[] ints;
+    private int intsOffset;
+    private int[] bitOffsets;
+    private int keepMask;
+
+    // Anything else, written a row at a time
+    private int[] samples;
+
+    QOIRegionCopier(int channels,
+                    @NotNull Rectangle sourceRegion,
+                    int xSubsampling,
+                    int ySubsampling,
+                    @NotNull Point destOffset,
+                    int[] sourceBands,
+                    int[] destBands,
+                    @NotNull WritableRaster dest,
+                    boolean premultiplied) {
+        this.channels = channels;
+        this.xSubsampling = xSubsampling;
+        this.ySubsampling = ySubsampling;
+        this.dest = dest;
+
+        int bands = sourceBands != null ? sourceBands.length : channels;
+
+        this.sourceBands = sourceBands != null ? sourceBands : identity(bands);
+        this.destBands = destBands != null ? destBands : identity(bands);
+        this.alphaSourceBand = premultiplied ? getAlphaSourceBand(dest.getNumBands() - 1) : -1;
+
+        // Skip the source pixels that land left of or above the destination
+        int skipX = Math.max(dest.getMinX() - destOffset.x, 0);
+        int skipY = Math.max(dest.getMinY() - destOffset.y, 0);
+
+        this.sourceX = sourceRegion.x + skipX * xSubsampling;
+        this.sourceY = sourceRegion.y + skipY * ySubsampling;
+        this.destX = destOffset.x + skipX;
+        this.destY = destOffset.y + skipY;
+
+        int columns = (sourceRegion.width + xSubsampling - 1) / xSubsampling - skipX;
+        int rows = (sourceRegion.height + ySubsampling - 1) / ySubsampling - skipY;
+
+        this.count = Math.max(Math.min(columns, dest.getMinX() + dest.getWidth() - this.destX), 0);
+        this.rows = Math.max(Math.min(rows, dest.getMinY() + dest.getHeight() - this.destY), 0);
+
+        initDest();
+    }
+
+    private int getAlphaSourceBand(int destAlphaBand) {
+        for (int i = 0; i < this.destBands.length; i++) {
+            if (this.destBands[i] == destAlphaBand) {
+                return this.sourceBands[i];
+            }
+        }
+
+        return -1;
+    }
+
+    private void initDest() {
+        SampleModel model = this.dest.getSampleModel();
+        DataBuffer buffer = this.dest.getDataBuffer();
+
+        int translateX = this.dest.getSampleModelTranslateX();
+        int translateY = this.dest.getSampleModelTranslateY();
+
+        if (model instanceof ComponentSampleModel && buffer instanceof DataBufferByte) {
+            ComponentSampleModel component = (ComponentSampleModel) model;
+
+            int[] bankIndices = component.getBankIndices();
+
+            this.pixelStride = component.getPixelStride();
+            this.scanlineStride = component.getScanlineStride();
+            this.bytesBanks = new byte[this.destBands.length][];
+            this.bytesOffsets = new int[this.destBands.length];
+
+            boolean sameLayout = this.pixelStride == this.channels && this.destBands.length == this.channels;
+
+            for (int i = 0; i < this.destBands.length; i++) {
+                int band = this.destBands[i];
+                int bank = bankIndices[band];
+
+                this.bytesBanks[i] = ((DataBufferByte) buffer).getData(bank);
+                this.bytesOffsets[i] = buffer.getOffsets()[bank] +
+                        component.getOffset(this.destX - translateX, this.destY - translateY, band);
+
+                sameLayout &= this.bytesBanks[i] == this.bytesBanks[0] &&
+                        this.bytesOffsets[i] - this.bytesOffsets[0] == this.sourceBands[i] - this.sourceBands[0] &&
+                        this.sourceBands[i] == i;
+            }
+
+            this.sameLayout = sameLayout;
+
+            return;
+        }
+
+        if (model instanceof SinglePixelPackedSampleModel && buffer instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+
+            int[] masks = packed.getBitMasks();
+            int[] offsets = packed.getBitOffsets();
+
+            this.ints = ((DataBufferInt) buffer).getData();
+            this.intsOffset = buffer.getOffset() + packed.getOffset(this.destX - translateX, this.destY - translateY);
+            this.scanlineStride = packed.getScanlineStride();
+            this.bitOffsets = new int[this.destBands.length];
+
+            int keepMask = -1;
+
+            for (int i = 0; i < this.destBands.length; i++) {
+                this.bitOffsets[i] = offsets[this.destBands[i]];
+
+                keepMask &= ~masks[this.destBands[i]];
+            }
+
+            this.keepMask = keepMask;
+
+            return;
+        }
+
+        this.samples = new int[this.count];
+    }
+
+    int getFirstSourceRow() {
+        return this.sourceY;
+    }
+
+    /**
+     * @return index of the last source row that is copied, or {@code getFirstSourceRow() - 1} if none
+     */
+    int getLastSourceRow() {
+        return this.sourceY + (this.rows - 1) * this.ySubsampling;
+    }
+
+    int getRowCount() {
+        return this.rows;
+    }
+
+    boolean isCopied(int y) {
+        return y >= this.sourceY && y <= getLastSourceRow() && (y - this.sourceY) % this.ySubsampling == 0;
+    }
+
+    /**
+     * Copies source row {@code y}, stored at {@code offset} in {@code source}.
+     * Rows not selected by {@link #isCopied(int)} must not be passed in.
+     */
+    void copyRow(byte @NotNull [] source, int offset, int y) {
+        if (this.count == 0) {
+            return;
+        }
+
+        int k = (y - this.sourceY) / this.ySubsampling;
+        int start = offset + this.sourceX * this.channels;
+        int step = this.xSubsampling * this.channels;
+
+        if (this.alphaSourceBand >= 0) {
+            source = premultiply(source, start, step);
+            start = 0;
+            step = this.channels;
+        }
+
+        if (this.bytesBanks != null) {
+            copyBytesRow(source, start, step, k);
+        } else if (this.ints != null) {
+            copyIntsRow(source, start, step, k);
+        } else {
+            copySamplesRow(source, start, step, k);
+        }
+    }
+
+    private void copyBytesRow(byte @NotNull [] source, int start, int step, int k) {
+        int count = this.count;
+        int pixelStride = this.pixelStride;
+        int rowOffset = k * this.scanlineStride;
+
+        if (this.sameLayout && step == this.channels) {
+            System.arraycopy(source, start, this.bytesBanks[0], this.bytesOffsets[0] + rowOffset, count * this.channels);
+
+            return;
+        }
+
+        for (int i = 0; i < this.destBands.length; i++) {
+            byte[] dst = this.bytesBanks[i];
+
+            int s = start + this.sourceBands[i];
+            int d = this.bytesOffsets[i] + rowOffset;
+
+            for (int end = d + count * pixelStride; d < end; d += pixelStride, s += step) {
+                dst[d] = source[s];
+            }
+        }
+    }
+
+    private void copyIntsRow(byte @NotNull [] source, int start, int step, int k) {
+        int[] dst = this.ints;
+        int[] sourceBands = this.sourceBands;
+        int[] bitOffsets = this.bitOffsets;
+        int keepMask = this.keepMask;
+
+        int d = this.intsOffset + k * this.scanlineStride;
+
+        for (int end = d + this.count, s = start; d < end; d++, s += step) {
+            int value = dst[d] & keepMask;
+
+            for (int i = 0; i < sourceBands.length; i++) {
+                value |= (source[s + sourceBands[i]] & 0xff) << bitOffsets[i];
+            }
+
+            dst[d] = value;
+        }
+    }
+
+    /**
+     * Packs the selected pixels of a row, with every band but the alpha one multiplied by alpha.
+     */
+    private byte[] premultiply(byte @NotNull [] source, int start, int step) {
+        int channels = this.channels;
+        int alphaBand = this.alphaSourceBand;
+
+        if (this.premultiplied == null) {
+            this.premultiplied = new byte[this.count * channels];
+        }
+
+        byte[] row = this.premultiplied;
+
+        for (int i = 0, s = start; i < row.length; i += channels, s += step) {
+            int a = source[s + alphaBand] & 0xff;
+
+            for (int c = 0; c < channels; c++) {
+                int value = source[s + c] & 0xff;
+
+                row[i + c] = (byte) (c == alphaBand ? value : QOIDecoder.multiply(value, a));
+            }
+        }
+
+        return row;
+    }
+
+    private void copySamplesRow(byte @NotNull [] source, int start, int step, int k) {
+        int[] samples = this.samples;
+
+        for (int i = 0; i < this.destBands.length; i++) {
+            for (int j = 0, s = start + this.sourceBands[i]; j < this.count; j++, s += step) {
+                samples[j] = source[s] & 0xff;
+            }
+
+            this.dest.setSamples(this.destX, this.destY + k, this.count, 1, this.destBands[i], samples);
+        }
+    }
+
+    private static int[] identity(int bands) {
+        int[] result = new int[bands];
+
+        for (int i = 0; i < bands; i++) {
+            result[i] = i;
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,58 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * Destination of whole decoded rows, in one of the pixel layouts the decoder writes.
+ */
+@FunctionalInterface
+interface QOIRowSink {
+
+    // Pixels decoded at once before being copied into a raster
+    int BUFFER_PIXELS = 64 * 1024;
+
+    /**
+     * Decodes the next {@code rows} rows from {@code decoder}, which is positioned at the start of row {@code y}.
+     */
+    void readRows(@NotNull QOIDecoder decoder, int y, int rows) throws IOException;
+
+    /**
+     * Interleaved RGB or RGBA bytes, with color samples mapped through {@code colorTable} unless it is null.
+     */
+    static QOIRowSink of(byte @NotNull [] pixelData, int width, int channels, byte[] colorTable) {
+        return (decoder, y, rows) -> decoder.readPixels(pixelData, y * width * channels, rows * width, channels, colorTable);
+    }
+
+    /**
+     * The raster of a {@code TYPE_INT_ARGB_PRE} image if {@code alpha} is set, otherwise of a {@code TYPE_INT_RGB} one.
+     * Color samples are mapped through {@code colorTable} unless it is null.
+     * <p>
+     * Rows are decoded into a small buffer and copied with {@link WritableRaster#setDataElements},
+     * because taking the backing array of the raster would stop Java2D from caching the image.
+     * The buffer is taken from {@code pool} unless it is null.
+     */
+    static QOIRowSink of(@NotNull WritableRaster raster, boolean alpha, byte[] colorTable, QOIBufferPool pool) {
+        int width = raster.getWidth();
+
+        return (decoder, y, rows) -> {
+            int band = Math.max(Math.min(BUFFER_PIXELS / width, rows), 1);
+            int[] pixels = QOIBufferPool.allocateInts(pool, band * width);
+
+            try {
+                for (int end = y + rows; y < end; y += band) {
+                    int n = Math.min(band, end - y);
+
+                    decoder.readPixels(pixels, 0, n * width, alpha, colorTable);
+
+                    raster.setDataElements(0, y, width, n, pixels);
+                }
+            } finally {
+                QOIBufferPool.free(pool, pixels);
+            }
+        };
+    }
+
+}
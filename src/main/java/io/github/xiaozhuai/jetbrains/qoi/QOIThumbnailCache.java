@@ -0,0 +1,337 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Thumbnails stored on disk as QOI files, least recently used first out once the
+ * total size exceeds the budget.
+ * <p>
+ * Entries are keyed by the path, length and modification stamp of the source file and
+ * the thumbnail size, so a changed file never hits a stale entry. The order of use
+ * survives restarts through the modification time of the entry files.
+ * <p>
+ * Only the bookkeeping is locked, entry files are read, written and deleted outside the
+ * lock. An entry deleted while it is read is a miss, a missing entry file is dropped.
+ */
+final class QOIThumbnailCache {
+
+    private static final String EXTENSION = ".qoi";
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    // Entry file -> size in bytes, least recently used first, guarded by itself
+    private final LinkedHashMap<Path, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    private long totalBytes;
+
+    private volatile boolean loaded;
+
+    // Temporary files older than this were left over by an interrupted write
+    private final FileTime created = FileTime.fromMillis(System.currentTimeMillis());
+
+    QOIThumbnailCache(@NotNull Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached thumbnail, or null if there is none for this version of the file
+     */
+    BufferedImage get(@NotNull String path, long length, long stamp, int maxSize) throws IOException {
+        load();
+
+        Path entry = this.directory.resolve(getEntryName(path, length, stamp, maxSize));
+
+        synchronized (this.entries) {
+            if (this.entries.get(entry) == null) {
+                return null;
+            }
+        }
+
+        BufferedImage image;
+
+        try {
+            image = read(entry);
+        } catch (IOException e) {
+            // Damaged or removed behind our back, decode the file again
+            remove(entry);
+
+            return null;
+        }
+
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted since, the image was read already
+        }
+
+        return image;
+    }
+
+    /**
+     * Stores the thumbnail of this version of the file, replacing those of other versions.
+     */
+    void put(@NotNull String path, long length, long stamp, int maxSize, @NotNull RenderedImage image) throws IOException {
+        load();
+
+        String name = getEntryName(path, length, stamp, maxSize);
+
+        Files.createDirectories(this.directory);
+
+        Path entry = this.directory.resolve(name);
+        Path temp = Files.createTempFile(this.directory, null, TEMP_EXTENSION);
+
+        try {
+            write(image, temp);
+
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        long size = Files.size(entry);
+
+        List<Path> stale;
+
+        synchronized (this.entries) {
+            stale = remove(path, name);
+
+            add(entry, size);
+
+            stale.addAll(evict());
+        }
+
+        delete(stale);
+    }
+
+    /**
+     * Removes all thumbnails of {@code path}.
+     */
+    void invalidate(@NotNull String path) throws IOException {
+        load();
+
+        List<Path> stale;
+
+        synchronized (this.entries) {
+            stale = remove(path, null);
+        }
+
+        delete(stale);
+    }
+
+    /**
+     * Lists the entries of the directory once, oldest use first. Listing races are harmless,
+     * only the first listing is taken.
+     */
+    private void load() throws IOException {
+        if (this.loaded || !Files.isDirectory(this.directory)) {
+            return;
+        }
+
+        List<Path> files = new ArrayList<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+
+        try (Stream<Path> stream = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) stream::iterator) {
+                String name = file.getFileName().toString();
+
+                if (!name.endsWith(EXTENSION) && !name.endsWith(TEMP_EXTENSION)) {
+                    continue;
+                }
+
+                FileTime time;
+
+                try {
+                    time = Files.getLastModifiedTime(file);
+
+                    if (name.endsWith(TEMP_EXTENSION)) {
+                        if (time.compareTo(this.created) < 0) {
+                            Files.deleteIfExists(file);
+                        }
+
+                        continue;
+                    }
+
+                    sizes.put(file, Files.size(file));
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                times.put(file, time);
+                files.add(file);
+            }
+        }
+
+        files.sort(Comparator.comparing(times::get));
+
+        List<Path> stale;
+
+        synchronized (this.entries) {
+            if (this.loaded) {
+                return;
+            }
+
+            this.loaded = true;
+
+            // Entries put before the listing are the most recent
+            Map<Path, Long> recent = new LinkedHashMap<>(this.entries);
+
+            this.entries.clear();
+            this.totalBytes = 0;
+
+            for (Path file : files) {
+                add(file, sizes.get(file));
+            }
+
+            for (Map.Entry<Path, Long> entry : recent.entrySet()) {
+                add(entry.getKey(), entry.getValue());
+            }
+
+            stale = evict();
+        }
+
+        delete(stale);
+    }
+
+    /**
+     * @return the entries of {@code path} other than {@code keep}, removed from the bookkeeping
+     */
+    private List<Path> remove(@NotNull String path, String keep) {
+        String prefix = hash(path) + "-";
+
+        List<Path> stale = new ArrayList<>();
+
+        for (Path entry : this.entries.keySet()) {
+            String name = entry.getFileName().toString();
+
+            if (name.startsWith(prefix) && !name.equals(keep)) {
+                stale.add(entry);
+            }
+        }
+
+        for (Path entry : stale) {
+            this.totalBytes -= this.entries.remove(entry);
+        }
+
+        return stale;
+    }
+
+    private void remove(@NotNull Path entry) throws IOException {
+        synchronized (this.entries) {
+            Long size = this.entries.remove(entry);
+
+            if (size == null) {
+                return;
+            }
+
+            this.totalBytes -= size;
+        }
+
+        Files.deleteIfExists(entry);
+    }
+
+    private void add(@NotNull Path entry, long size) {
+        Long previous = this.entries.put(entry, size);
+
+        this.totalBytes += size - (previous != null ? previous : 0);
+    }
+
+    /**
+     * @return the least recently used entries over the budget, removed from the bookkeeping
+     */
+    private List<Path> evict() {
+        List<Path> evicted = new ArrayList<>();
+
+        Iterator<Map.Entry<Path, Long>> iterator = this.entries.entrySet().iterator();
+
+        while (this.totalBytes > this.maxBytes && iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+
+            iterator.remove();
+
+            this.totalBytes -= entry.getValue();
+
+            evicted.add(entry.getKey());
+        }
+
+        return evicted;
+    }
+
+    private static void delete(@NotNull List<Path> entries) throws IOException {
+        for (Path entry : entries) {
+            Files.deleteIfExists(entry);
+        }
+    }
+
+    /**
+     * Reads an entry into the heap first, so the file is not held open while it decodes.
+     */
+    private static BufferedImage read(@NotNull Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+
+        try {
+            reader.setInput(data);
+
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setPackedPixels(true);
+
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static void write(@NotNull RenderedImage image, @NotNull Path file) throws IOException {
+        ImageWriter writer = new QOIImageWriterSpi().createWriterInstance(null);
+
+        try {
+            writer.setOutput(file);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static String getEntryName(@NotNull String path, long length, long stamp, int maxSize) {
+        return hash(path) + "-" + Long.toHexString(length) + "-" + Long.toHexString(stamp) + "-" + maxSize + EXTENSION;
+    }
+
+    private static String hash(@NotNull String path) {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder result = new StringBuilder();
+
+        for (byte b : digest.digest(path.getBytes(StandardCharsets.UTF_8))) {
+            result.append(Character.forDigit(b >>> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return result.toString();
+    }
+
+}
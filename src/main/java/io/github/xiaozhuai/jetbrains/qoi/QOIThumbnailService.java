@@ -0,0 +1,173 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Application service serving thumbnails of QOI files from a {@link QOIThumbnailCache}
+ * in the IDE system directory, so a file is decoded once per version rather than every
+ * time a thumbnail of it is shown. Missing thumbnails are decoded by {@link QOIDecodeService}.
+ */
+public final class QOIThumbnailService {
+    private static final Logger LOG = Logger.getInstance(QOIThumbnailService.class);
+
+    /**
+     * Disk space used by the thumbnails, in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE = Math.max(Long.getLong("qoi.thumbnailCacheSize", 64L * 1024 * 1024), 0);
+
+    private final QOIThumbnailCache cache = new QOIThumbnailCache(Path.of(PathManager.getSystemPath(), "qoi-thumbnails"), DEFAULT_CACHE_SIZE);
+
+    public static @NotNull QOIThumbnailService getInstance() {
+        return ApplicationManager.getApplication().getService(QOIThumbnailService.class);
+    }
+
+    /**
+     * Returns a thumbnail of {@code file} no larger than {@code maxSize} in either dimension,
+     * scaled down from the smallest mipmap level large enough, or the image itself if it already
+     * fits. The disk cache is looked up off the calling thread. Cancelling the returned future
+     * withdraws the decode request.
+     */
+    public @NotNull CompletableFuture<BufferedImage> getThumbnail(@NotNull VirtualFile file, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        String path = file.getPath();
+        long length = file.getLength();
+        long stamp = file.getTimeStamp();
+
+        CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+
+            try {
+                BufferedImage cached = this.cache.get(path, length, stamp, maxSize);
+
+                if (cached != null) {
+                    result.complete(cached);
+
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.warn("Cannot read the thumbnail cache", e);
+            }
+
+            CompletableFuture<BufferedImage> decode = QOIDecodeService.getInstance().decode(file, maxSize);
+
+            result.whenComplete((image, error) -> {
+                if (result.isCancelled()) {
+                    decode.cancel(false);
+                }
+            });
+
+            decode.whenComplete((image, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+
+                    return;
+                }
+
+                BufferedImage thumbnail = scale(image, maxSize);
+
+                try {
+                    this.cache.put(path, length, stamp, maxSize, thumbnail);
+                } catch (IOException e) {
+                    LOG.warn("Cannot write the thumbnail cache", e);
+                }
+
+                result.complete(thumbnail);
+            });
+        });
+
+        return result;
+    }
+
+    /**
+     * Scales {@code image} down to fit {@code maxSize}, keeping its aspect ratio.
+     */
+    private static @NotNull BufferedImage scale(@NotNull BufferedImage image, int maxSize) {
+        int longer = Math.max(image.getWidth(), image.getHeight());
+
+        if (longer <= maxSize) {
+            return image;
+        }
+
+        int width = Math.max((int) ((long) image.getWidth() * maxSize / longer), 1);
+        int height = Math.max((int) ((long) image.getHeight() * maxSize / longer), 1);
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+
+        Graphics2D graphics = scaled.createGraphics();
+
+        try {
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return scaled;
+    }
+
+    /**
+     * Drops the thumbnails of {@code path}. Changed files already miss the cache through their
+     * modification stamp, this frees the space of versions that will not be asked for again.
+     */
+    void invalidate(@NotNull String path) {
+        try {
+            this.cache.invalidate(path);
+        } catch (IOException e) {
+            LOG.warn("Cannot invalidate the thumbnail cache", e);
+        }
+    }
+
+    /**
+     * Invalidates the thumbnails of QOI files changed, deleted, moved or renamed in the VFS.
+     */
+    public static final class Invalidator implements BulkFileListener {
+        @Override
+        public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+            // Nothing to drop if the service was never used, stale disk entries never match and age out
+            QOIThumbnailService service = ApplicationManager.getApplication().getServiceIfCreated(QOIThumbnailService.class);
+
+            if (service == null) {
+                return;
+            }
+
+            for (VFileEvent event : events) {
+                if (event instanceof VFileContentChangeEvent || event instanceof VFileDeleteEvent) {
+                    invalidate(service, event.getPath());
+                } else if (event instanceof VFileMoveEvent) {
+                    invalidate(service, ((VFileMoveEvent) event).getOldPath());
+                } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                    invalidate(service, ((VFilePropertyChangeEvent) event).getOldPath());
+                }
+            }
+        }
+
+        private static void invalidate(@NotNull QOIThumbnailService service, @NotNull String path) {
+            if (path.endsWith("." + QOIPluginConstants.QOI_EXTENSION)) {
+                // The listener runs in a write action, the cache touches the disk
+                AppExecutorUtil.getAppExecutorService().execute(() -> service.invalidate(path));
+            }
+        }
+    }
+}
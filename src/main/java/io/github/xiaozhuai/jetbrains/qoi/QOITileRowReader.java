@@ -0,0 +1,337 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a region of a {@link RenderedImage} in scanline order, one row of tiles at a time,
+ * so only the tiles of the current band are ever referenced. A {@link Raster} is read as
+ * an image of a single tile.
+ * <p>
+ * Pixels are either converted through the image's {@link ColorModel}, or taken as raw
+ * samples of the selected bands, like an {@link javax.imageio.ImageWriteParam} asks for.
+ * Rows and columns may be subsampled.
+ */
+final class QOITileRowReader {
+
+    private final Tiles tiles;
+
+    // Tile grid offset and tile size
+    private final Rectangle grid;
+
+    // Null when taking raw samples
+    private final ColorModel colorModel;
+
+    private final QOIColorSpace colorSpace;
+
+    private final Rectangle region;
+    private final int xSubsampling;
+    private final int ySubsampling;
+
+    // Null when converting through the color model
+    private final int[] sourceBands;
+
+    private final int width;
+    private final int height;
+    private final int channels;
+
+    // Next tile row to load
+    private int tileY;
+
+    // Output rows [bandStart, bandEnd) are covered by the loaded tiles
+    private int bandStart;
+    private int bandEnd;
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Converts the pixels of {@code region} through the color model of the image.
+     */
+    QOITileRowReader(@NotNull RenderedImage image, @NotNull Rectangle region) {
+        this(image, region, 1, 1);
+    }
+
+    /**
+     * Converts every {@code xSubsampling}th column and {@code ySubsampling}th row of {@code region}
+     * through the color model of the image.
+     */
+    QOITileRowReader(@NotNull RenderedImage image, @NotNull Rectangle region, int xSubsampling, int ySubsampling) {
+        this(image::getTile, getGrid(image), image.getColorModel(),
+                QOIRasterPixelSource.getColorSpace(image.getSampleModel(), image.getColorModel()), region, xSubsampling, ySubsampling, null,
+                image.getColorModel().getTransparency() != Transparency.OPAQUE ? 4 : 3);
+    }
+
+    /**
+     * Takes raw samples of {@code sourceBands} (all bands if null) of every
+     * {@code xSubsampling}th column and {@code ySubsampling}th row of {@code region}.
+     */
+    QOITileRowReader(@NotNull RenderedImage image, @NotNull Rectangle region, int xSubsampling, int ySubsampling, int[] sourceBands) {
+        this(image::getTile, getGrid(image), null, QOIColorSpace.SRGB, region, xSubsampling, ySubsampling,
+                sourceBands != null ? sourceBands : identity(image.getSampleModel().getNumBands()),
+                sourceBands != null ? sourceBands.length : image.getSampleModel().getNumBands());
+    }
+
+    /**
+     * Takes raw samples of {@code sourceBands} (all bands if null) of every
+     * {@code xSubsampling}th column and {@code ySubsampling}th row of {@code region}.
+     */
+    QOITileRowReader(@NotNull Raster raster, @NotNull Rectangle region, int xSubsampling, int ySubsampling, int[] sourceBands) {
+        this((tileX, tileY) -> raster, raster.getBounds(), null, QOIColorSpace.SRGB, region, xSubsampling, ySubsampling,
+                sourceBands != null ? sourceBands : identity(raster.getNumBands()),
+                sourceBands != null ? sourceBands.length : raster.getNumBands());
+    }
+
+    private QOITileRowReader(@NotNull Tiles tiles,
+                             @NotNull Rectangle grid,
+                             ColorModel colorModel,
+                             @NotNull QOIColorSpace colorSpace,
+                             @NotNull Rectangle region,
+                             int xSubsampling,
+                             int ySubsampling,
+                             int[] sourceBands,
+                             int channels) {
+        this.tiles = tiles;
+        this.grid = grid;
+        this.colorModel = colorModel;
+        this.colorSpace = colorSpace;
+        this.region = region;
+        this.xSubsampling = xSubsampling;
+        this.ySubsampling = ySubsampling;
+        this.sourceBands = sourceBands;
+        this.width = (region.width + xSubsampling - 1) / xSubsampling;
+        this.height = (region.height + ySubsampling - 1) / ySubsampling;
+        this.channels = channels;
+        this.tileY = tileIndex(region.y, grid.y, grid.height);
+
+        if (colorModel != null) {
+            QOIRasterPixelSource.prepare(colorModel, (long) region.width * region.height);
+        }
+    }
+
+    private static @NotNull Rectangle getGrid(@NotNull RenderedImage image) {
+        return new Rectangle(image.getTileGridXOffset(), image.getTileGridYOffset(), image.getTileWidth(), image.getTileHeight());
+    }
+
+    int getWidth() {
+        return this.width;
+    }
+
+    int getHeight() {
+        return this.height;
+    }
+
+    int getChannels() {
+        return this.channels;
+    }
+
+    /**
+     * @return whether pixels are converted through the color model, rather than taken as raw samples
+     */
+    boolean isConverted() {
+        return this.colorModel != null;
+    }
+
+    /**
+     * @return the color space of the rows, raw samples are taken as sRGB
+     */
+    @NotNull QOIColorSpace getColorSpace() {
+        return this.colorSpace;
+    }
+
+    /**
+     * Releases the current tiles and loads the next row of tiles holding at least one output row.
+     *
+     * @return false if all rows were read
+     */
+    boolean nextBand() {
+        this.segments.clear();
+
+        if (this.bandEnd >= this.height) {
+            return false;
+        }
+
+        int tileHeight = this.grid.height;
+        int gridY = this.grid.y;
+
+        // First and last source row of the next output row in each tile row, skipping tile rows without any
+        int first;
+        int last;
+
+        do {
+            int top = Math.max(gridY + this.tileY * tileHeight, this.region.y);
+            int bottom = Math.min(gridY + (this.tileY + 1) * tileHeight, this.region.y + this.region.height);
+
+            this.tileY++;
+
+            first = this.region.y + this.bandEnd * this.ySubsampling;
+            last = bottom - 1;
+
+            if (first < top) {
+                throw new IllegalStateException("Tile rows out of order");
+            }
+        } while (first > last);
+
+        this.bandStart = this.bandEnd;
+        this.bandEnd = Math.min((last - this.region.y) / this.ySubsampling + 1, this.height);
+
+        loadTiles(this.tileY - 1, first, last - first + 1);
+
+        return true;
+    }
+
+    int getBandStart() {
+        return this.bandStart;
+    }
+
+    int getBandEnd() {
+        return this.bandEnd;
+    }
+
+    /**
+     * Fills {@code rgba[0, width)} with output row {@code y}, which must be in the current band.
+     */
+    void readRow(int y, int @NotNull [] rgba) {
+        int sourceY = this.region.y + y * this.ySubsampling;
+
+        for (Segment segment : this.segments) {
+            segment.readRow(sourceY, rgba);
+        }
+    }
+
+    private void loadTiles(int tileY, int y, int height) {
+        int tileWidth = this.grid.width;
+        int gridX = this.grid.x;
+
+        int firstTile = tileIndex(this.region.x, gridX, tileWidth);
+        int lastTile = tileIndex(this.region.x + this.region.width - 1, gridX, tileWidth);
+
+        for (int tileX = firstTile; tileX <= lastTile; tileX++) {
+            Raster tile = this.tiles.getTile(tileX, tileY);
+
+            // First output column in this tile and the source column it comes from
+            int left = Math.max(tile.getMinX(), this.region.x);
+            int column = (left - this.region.x + this.xSubsampling - 1) / this.xSubsampling;
+            int x = this.region.x + column * this.xSubsampling;
+
+            int right = Math.min(tile.getMinX() + tile.getWidth(), this.region.x + this.region.width);
+            int count = Math.min((right - x + this.xSubsampling - 1) / this.xSubsampling, this.width - column);
+
+            if (count <= 0) {
+                // Falls between two subsampled columns
+                continue;
+            }
+
+            Raster child = tile.createChild(x, y, (count - 1) * this.xSubsampling + 1, height, x, y, this.sourceBands);
+
+            this.segments.add(this.sourceBands == null ?
+                    new ColorModelSegment(QOIRasterPixelSource.of(child, this.colorModel), child, column, count, this.xSubsampling) :
+                    new BandsSegment(child, column, count, this.xSubsampling));
+        }
+    }
+
+    private static int tileIndex(int coordinate, int gridOffset, int tileSize) {
+        return Math.floorDiv(coordinate - gridOffset, tileSize);
+    }
+
+    private static int[] identity(int bands) {
+        int[] result = new int[bands];
+
+        for (int i = 0; i < bands; i++) {
+            result[i] = i;
+        }
+
+        return result;
+    }
+
+    private interface Tiles {
+
+        Raster getTile(int tileX, int tileY);
+
+    }
+
+    /**
+     * The part of a row that comes from one tile.
+     */
+    private interface Segment {
+
+        void readRow(int sourceY, int @NotNull [] rgba);
+
+    }
+
+    private static final class ColorModelSegment implements Segment {
+
+        private final QOIPixelSource source;
+        private final int minY;
+        private final int column;
+        private final int count;
+        private final int xSubsampling;
+        private final int[] row;
+
+        ColorModelSegment(@NotNull QOIPixelSource source, @NotNull Raster child, int column, int count, int xSubsampling) {
+            this.source = source;
+            this.minY = child.getMinY();
+            this.column = column;
+            this.count = count;
+            this.xSubsampling = xSubsampling;
+            this.row = new int[source.getWidth()];
+        }
+
+        @Override
+        public void readRow(int sourceY, int @NotNull [] rgba) {
+            this.source.readRow(sourceY - this.minY, this.row);
+
+            if (this.xSubsampling == 1) {
+                System.arraycopy(this.row, 0, rgba, this.column, this.count);
+
+                return;
+            }
+
+            for (int i = 0, x = 0; i < this.count; i++, x += this.xSubsampling) {
+                rgba[this.column + i] = this.row[x];
+            }
+        }
+
+    }
+
+    private static final class BandsSegment implements Segment {
+
+        private final Raster child;
+        private final int column;
+        private final int count;
+        private final int xSubsampling;
+        private final int[] samples;
+
+        BandsSegment(@NotNull Raster child, int column, int count, int xSubsampling) {
+            this.child = child;
+            this.column = column;
+            this.count = count;
+            this.xSubsampling = xSubsampling;
+            this.samples = new int[child.getWidth() * child.getNumBands()];
+        }
+
+        @Override
+        public void readRow(int sourceY, int @NotNull [] rgba) {
+            int[] samples = this.child.getPixels(this.child.getMinX(), sourceY, this.child.getWidth(), 1, this.samples);
+
+            int bands = this.child.getNumBands();
+            int step = this.xSubsampling * bands;
+
+            for (int i = 0, s = 0; i < this.count; i++, s += step) {
+                // Raw samples, truncated to 8 bits
+                rgba[this.column + i] = (samples[s] & 0xff) << 24 |
+                        (samples[s + 1] & 0xff) << 16 |
+                        (samples[s + 2] & 0xff) << 8 |
+                        (bands == 4 ? samples[s + 3] & 0xff : 0xff);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Vector;
+
+/**
+ * Decoded image held in fixed size tiles, each with its own {@link DataBuffer}, so the
+ * whole image is not limited to the size of a single array.
+ * <p>
+ * Tiles are filled a row at a time, in the layout of {@link #getSampleModel()}:
+ * interleaved bytes or packed ints. Rows that were never stored, as after an aborted
+ * read, are left zero.
+ */
+final class QOITiledImage implements RenderedImage {
+
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    // Array elements per pixel
+    private final int elements;
+
+    // [tileY][tileX], all allocated up front so rows never decoded read as zero
+    private final WritableRaster[][] tiles;
+
+    QOITiledImage(int width, int height, int tileWidth, int tileHeight, @NotNull ColorModel colorModel) {
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.colorModel = colorModel;
+        this.sampleModel = colorModel.createCompatibleSampleModel(tileWidth, tileHeight);
+        this.elements = this.sampleModel instanceof ComponentSampleModel ? this.sampleModel.getNumBands() : 1;
+        this.tiles = new WritableRaster[getNumYTiles()][getNumXTiles()];
+
+        for (int tileY = 0; tileY < this.tiles.length; tileY++) {
+            for (int tileX = 0; tileX < this.tiles[tileY].length; tileX++) {
+                this.tiles[tileY][tileX] = Raster.createWritableRaster(this.sampleModel, new Point(tileX * tileWidth, tileY * tileHeight));
+            }
+        }
+    }
+
+    /**
+     * Stores row {@code y}, an array holding {@code width} pixels in the layout of the sample model.
+     */
+    void setRow(int y, @NotNull Object row) {
+        int tileY = y / this.tileHeight;
+        int elements = this.elements;
+
+        WritableRaster[] tiles = this.tiles[tileY];
+
+        for (int tileX = 0; tileX < tiles.length; tileX++) {
+            WritableRaster tile = tiles[tileX];
+
+            int x = tileX * this.tileWidth;
+            int count = Math.min(this.tileWidth, this.width - x);
+            int offset = (y - tileY * this.tileHeight) * this.tileWidth * elements;
+
+            System.arraycopy(row, x * elements, getData(tile.getDataBuffer()), offset, count * elements);
+        }
+    }
+
+    private static Object getData(@NotNull DataBuffer buffer) {
+        return buffer instanceof DataBufferInt ? ((DataBufferInt) buffer).getData() : ((DataBufferByte) buffer).getData();
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return this.colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return this.sampleModel;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return (this.width + this.tileWidth - 1) / this.tileWidth;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (this.height + this.tileHeight - 1) / this.tileHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return this.tileWidth;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return this.tileHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return this.tiles[tileY][tileX];
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, this.width, this.height));
+    }
+
+    @Override
+    public Raster getData(@NotNull Rectangle rect) {
+        SampleModel sampleModel = this.sampleModel.createCompatibleSampleModel(rect.width, rect.height);
+
+        return copyData(Raster.createWritableRaster(sampleModel, rect.getLocation()));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            return (WritableRaster) getData();
+        }
+
+        Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, this.width, this.height));
+
+        if (bounds.isEmpty()) {
+            return raster;
+        }
+
+        for (int tileY = bounds.y / this.tileHeight; tileY <= (bounds.y + bounds.height - 1) / this.tileHeight; tileY++) {
+            for (int tileX = bounds.x / this.tileWidth; tileX <= (bounds.x + bounds.width - 1) / this.tileWidth; tileX++) {
+                // Only the part overlapping the raster is copied
+                raster.setRect(this.tiles[tileY][tileX]);
+            }
+        }
+
+        return raster;
+    }
+
+}
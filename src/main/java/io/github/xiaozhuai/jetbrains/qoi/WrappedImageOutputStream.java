@@ -32,4 +32,9 @@ final class WrappedImageOutputStream extends OutputStream {
         this.output.write(b);
     }
 
+    @Override
+    public void flush() throws IOException {
+        this.output.flush();
+    }
+
 }
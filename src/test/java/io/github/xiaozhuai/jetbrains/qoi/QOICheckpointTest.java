@@ -0,0 +1,245 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIImage;
+import me.saharnooby.qoi.QOIUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageReader;
+import java.awt.*;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class QOICheckpointTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void regionReadsResumeAtCheckpoints() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        QOIImage expected = QOIUtil.readImage(new ByteArrayInputStream(data));
+
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+        reader.setInput(data);
+
+        // Records the checkpoints down to the region, later regions above it resume from them
+        for (Rectangle region : new Rectangle[]{new Rectangle(10, 300, 50, 40), new Rectangle(0, 65, WIDTH, 1), new Rectangle(100, 0, 1, 1), new Rectangle(0, 399, WIDTH, 1)}) {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setCheckpointInterval(16);
+            param.setSourceRegion(region);
+
+            assertRegion(expected, region, reader.readRaster(0, param));
+        }
+    }
+
+    @Test
+    public void checkpointFileIsReused() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        File input = write("image.qoi", data);
+        File sidecar = new File(this.folder.getRoot(), "image.qoic");
+
+        readRegion(input, sidecar, null, null);
+
+        assertTrue(sidecar.isFile());
+
+        List<String> warnings = new ArrayList<>();
+        Rectangle region = new Rectangle(20, 350, 80, 30);
+
+        assertRegion(QOIUtil.readImage(new ByteArrayInputStream(data)), region, readRegion(input, sidecar, region, warnings));
+        assertEquals(List.of(), warnings);
+
+        // Touched but unchanged, the digest still matches
+        Files.setLastModifiedTime(input.toPath(), FileTime.fromMillis(input.lastModified() + 5000));
+
+        assertRegion(QOIUtil.readImage(new ByteArrayInputStream(data)), region, readRegion(input, sidecar, region, warnings));
+        assertEquals(List.of(), warnings);
+    }
+
+    @Test
+    public void staleCheckpointFileIsIgnored() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        File input = write("image.qoi", data);
+        File sidecar = new File(this.folder.getRoot(), "image.qoic");
+
+        readRegion(input, sidecar, null, null);
+
+        // Edited in place: same length and size, other pixels from the first RGBA op on
+        byte[] edited = data.clone();
+        int op = findRgbaOp(edited);
+        edited[op + 1] ^= 0x55;
+        edited[op + 2] ^= 0x33;
+
+        try (RandomAccessFile file = new RandomAccessFile(input, "rw")) {
+            file.write(edited);
+        }
+
+        Files.setLastModifiedTime(input.toPath(), FileTime.fromMillis(input.lastModified() + 5000));
+
+        List<String> warnings = new ArrayList<>();
+        Rectangle region = new Rectangle(0, 380, WIDTH, 20);
+
+        assertRegion(QOIUtil.readImage(new ByteArrayInputStream(edited)), region, readRegion(input, sidecar, region, warnings));
+        assertEquals(1, warnings.size());
+    }
+
+    @Test
+    public void damagedCheckpointFileFallsBackToFullDecode() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        QOIImage expected = QOIUtil.readImage(new ByteArrayInputStream(data));
+        File sidecar = new File(this.folder.getRoot(), "image.qoic");
+
+        readRegion(data, sidecar, null, null);
+
+        byte[] index = Files.readAllBytes(sidecar.toPath());
+        Rectangle region = new Rectangle(5, 390, 100, 10);
+
+        // Checkpoint entries are an offset, a pixel, a run and 64 index slots, followed by the CRC
+        int last = index.length - 4 - (8 + 4 + 4 + 64 * 4);
+
+        List<byte[]> damages = new ArrayList<>();
+        damages.add(withLong(index, last, data.length));
+        damages.add(withLong(index, last, -1));
+        damages.add(withLong(index, last - (8 + 4 + 4 + 64 * 4), data.length - 8));
+        damages.add(withInt(index, last + 8 + 4, 62));
+        damages.add(withInt(index, last + 8 + 4, -1));
+
+        byte[] checksum = index.clone();
+        checksum[index.length - 1] ^= 0x7f;
+        damages.add(checksum);
+
+        for (byte[] damaged : damages) {
+            Files.write(sidecar.toPath(), damaged);
+
+            List<String> warnings = new ArrayList<>();
+
+            assertRegion(expected, region, readRegion(data, sidecar, region, warnings));
+            assertEquals(1, warnings.size());
+        }
+
+        // Written again by the next full decode
+        readRegion(data, sidecar, null, null);
+
+        assertArrayEquals(index, Files.readAllBytes(sidecar.toPath()));
+    }
+
+    /**
+     * @return a copy of the checkpoint file with {@code value} at {@code offset} and a matching CRC
+     */
+    private static byte @NotNull [] withLong(byte @NotNull [] index, int offset, long value) {
+        byte[] damaged = index.clone();
+
+        ByteBuffer.wrap(damaged).putLong(offset, value);
+
+        return withChecksum(damaged);
+    }
+
+    private static byte @NotNull [] withInt(byte @NotNull [] index, int offset, int value) {
+        byte[] damaged = index.clone();
+
+        ByteBuffer.wrap(damaged).putInt(offset, value);
+
+        return withChecksum(damaged);
+    }
+
+    private static byte @NotNull [] withChecksum(byte @NotNull [] index) {
+        CRC32 crc = new CRC32();
+        crc.update(index, 0, index.length - 4);
+
+        ByteBuffer.wrap(index).putInt(index.length - 4, (int) crc.getValue());
+
+        return index;
+    }
+
+    /**
+     * Reads {@code region}, or the whole image if it is null, with {@code sidecar} as checkpoint file.
+     */
+    private Raster readRegion(@NotNull Object input, @NotNull File sidecar, Rectangle region, List<String> warnings) throws IOException {
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+
+        if (warnings != null) {
+            reader.addIIOReadWarningListener((source, warning) -> warnings.add(warning));
+        }
+
+        try {
+            reader.setInput(input);
+
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setCheckpointInterval(32);
+            param.setCheckpointFile(sidecar);
+
+            if (region != null) {
+                param.setSourceRegion(region);
+            }
+
+            return reader.readRaster(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private File write(@NotNull String name, byte @NotNull [] data) throws IOException {
+        File file = this.folder.newFile(name);
+
+        Files.write(file.toPath(), data);
+
+        return file;
+    }
+
+    /**
+     * @return the position of the first {@code QOI_OP_RGBA}
+     */
+    private static int findRgbaOp(byte @NotNull [] data) {
+        for (int i = QOIHeader.SIZE; i < data.length - 8; ) {
+            int op = data[i] & 0xff;
+
+            if (op == 0xff) {
+                return i;
+            }
+
+            // QOI_OP_RGB, QOI_OP_LUMA, anything else is a single byte
+            i += op == 0xfe ? 4 : (op & 0xc0) == 0x80 ? 2 : 1;
+        }
+
+        throw new AssertionError("No QOI_OP_RGBA");
+    }
+
+    static void assertRegion(@NotNull QOIImage expected, @NotNull Rectangle region, @NotNull Raster actual) {
+        int channels = expected.getChannels();
+        byte[] pixels = expected.getPixelData();
+
+        assertEquals(region.width, actual.getWidth());
+        assertEquals(region.height, actual.getHeight());
+
+        int[] samples = new int[channels];
+
+        for (int y = 0; y < region.height; y++) {
+            for (int x = 0; x < region.width; x++) {
+                actual.getPixel(actual.getMinX() + x, actual.getMinY() + y, samples);
+
+                int i = ((region.y + y) * expected.getWidth() + region.x + x) * channels;
+
+                for (int band = 0; band < channels; band++) {
+                    assertEquals("pixel " + (region.x + x) + ", " + (region.y + y), pixels[i + band] & 0xff, samples[band]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times {@link QOIImageReader} against the qoi-java read path it replaced, {@link QOIUtil#readImage}
+ * over the {@link ImageInputStream} followed by {@link QOIImageReader#convertToBufferedImage}.
+ * Both read the same in-memory stream, the image cache is cleared before every read.
+ * <p>
+ * Run with {@code ./gradlew benchmark}. Prints the median time of every path per image.
+ */
+public final class QOIDecoderBenchmark {
+
+    private static final int WARMUP = 5;
+
+    private static final int RUNS = 15;
+
+    private QOIDecoderBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+
+        System.out.printf(Locale.ROOT, "%d cores, %dx%d images, median of %d runs%n", Runtime.getRuntime().availableProcessors(), size, size, RUNS);
+
+        run("photo", QOITestImages.encode(QOITestImages.photo(size, size, true)));
+        run("sprite", QOITestImages.encode(QOITestImages.sprite(size, size)));
+    }
+
+    private static void run(@NotNull String name, byte @NotNull [] data) throws IOException {
+        BufferedImage reference = readQoiJava(data);
+
+        QOIImageReadParam serial = new QOIImageReadParam();
+        serial.setPackedPixels(false);
+        serial.setParallelThreshold(Long.MAX_VALUE);
+
+        QOIImageReadParam parallel = new QOIImageReadParam();
+        parallel.setPackedPixels(false);
+        parallel.setParallelThreshold(0);
+
+        QOITestImages.assertSamePixels(reference, read(data, serial));
+        QOITestImages.assertSamePixels(reference, read(data, parallel));
+
+        double baseline = time(() -> readQoiJava(data));
+        double decoder = time(() -> read(data, serial));
+        double parallelDecoder = time(() -> read(data, parallel));
+
+        System.out.printf(Locale.ROOT, "%-7s %9d bytes  qoi-java %8.2f ms  QOIDecoder %8.2f ms (%.2fx)  parallel %8.2f ms (%.2fx)%n",
+                name, data.length, baseline, decoder, baseline / decoder, parallelDecoder, baseline / parallelDecoder);
+    }
+
+    /**
+     * The read path before {@link QOIDecoder}, qoi-java reading through a plain wrapper of the stream.
+     */
+    private static BufferedImage readQoiJava(byte @NotNull [] data) throws IOException {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            InputStream input = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    return stream.read();
+                }
+
+                @Override
+                public int read(byte @NotNull [] b, int off, int len) throws IOException {
+                    return stream.read(b, off, len);
+                }
+            };
+
+            return QOIImageReader.convertToBufferedImage(QOIUtil.readImage(input));
+        }
+    }
+
+    private static BufferedImage read(byte @NotNull [] data, @NotNull QOIImageReadParam param) throws IOException {
+        QOIImageCache.getInstance().clear();
+
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+
+        // An ImageInputStream, as the IDE hands to the reader
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            reader.setInput(stream);
+
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Read {
+
+        BufferedImage run() throws IOException;
+
+    }
+
+    /**
+     * @return the median time of a read in milliseconds
+     */
+    private static double time(@NotNull Read read) throws IOException {
+        long[] times = new long[RUNS];
+
+        for (int i = -WARMUP; i < RUNS; i++) {
+            long start = System.nanoTime();
+
+            read.run();
+
+            if (i >= 0) {
+                times[i] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(times);
+
+        return times[RUNS / 2] / 1e6;
+    }
+
+}
@@ -0,0 +1,104 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class QOIImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void clear() {
+        QOIImageCache.getInstance().clear();
+    }
+
+    @Test
+    public void hitsAreCopies() throws IOException {
+        BufferedImage source = QOITestImages.photo(200, 150, true);
+
+        File file = this.folder.newFile("image.qoi");
+        Files.write(file.toPath(), QOITestImages.encode(source));
+
+        long hits = QOIImageCache.getInstance().getHitCount();
+
+        BufferedImage first = read(file, new QOIImageReadParam());
+
+        // Neither the image put into the cache nor the one it hands out are shared
+        first.setRGB(0, 0, 0x12345678);
+
+        BufferedImage second = read(file, new QOIImageReadParam());
+        BufferedImage third = read(file, new QOIImageReadParam());
+
+        assertEquals(hits + 2, QOIImageCache.getInstance().getHitCount());
+        assertNotSame(second, third);
+
+        second.setRGB(0, 0, 0x12345678);
+
+        QOITestImages.assertSamePixels(source, third);
+    }
+
+    @Test
+    public void streamsAreKeyedByContent() throws IOException {
+        BufferedImage source = QOITestImages.photo(200, 150, true);
+        byte[] data = QOITestImages.encode(source);
+
+        // Same length, another pixel
+        source.setRGB(199, 149, 0xff000000);
+        byte[] other = QOITestImages.encode(source);
+
+        assertEquals(data.length, other.length);
+
+        long hits = QOIImageCache.getInstance().getHitCount();
+
+        read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), new QOIImageReadParam());
+
+        QOITestImages.assertSamePixels(source, read(new MemoryCacheImageInputStream(new ByteArrayInputStream(other)), new QOIImageReadParam()));
+
+        assertEquals(hits, QOIImageCache.getInstance().getHitCount());
+
+        read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), new QOIImageReadParam());
+
+        assertEquals(hits + 1, QOIImageCache.getInstance().getHitCount());
+
+        assertEquals(QOIImageCache.Key.of(data), QOIImageCache.Key.of(data.clone()));
+        assertNotEquals(QOIImageCache.Key.of(data), QOIImageCache.Key.of(other));
+    }
+
+    @Test
+    public void reducedPreviewsAreNotCached() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(200, 150, true));
+
+        QOIImageReadParam param = new QOIImageReadParam();
+        param.setMemoryBudget(100 * 75 * 4);
+
+        BufferedImage preview = read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), param);
+
+        assertEquals(100, preview.getWidth());
+        assertEquals(0, QOIImageCache.getInstance().getSize());
+    }
+
+    private static BufferedImage read(@NotNull Object input, @NotNull QOIImageReadParam param) throws IOException {
+        ImageReader reader = QOIImageReaderTest.createReader(input, null);
+
+        try {
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+}
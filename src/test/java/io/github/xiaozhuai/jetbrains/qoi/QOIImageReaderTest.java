@@ -0,0 +1,395 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIImage;
+import me.saharnooby.qoi.QOIUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class QOIImageReaderTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 400;
+
+    @Test
+    public void defaultReadIsLossless() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+
+        ImageReader reader = createReader(data, null);
+
+        try {
+            BufferedImage image = reader.read(0);
+
+            assertFalse(image.isAlphaPremultiplied());
+
+            QOICheckpointTest.assertRegion(QOIUtil.readImage(new ByteArrayInputStream(data)), new Rectangle(0, 0, WIDTH, HEIGHT), image.getRaster());
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void packedPixelsOnlyWhenAsked() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+
+        ImageReader reader = createReader(data, null);
+
+        try {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setPackedPixels(true);
+
+            assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, reader.read(0, param).getType());
+            assertNotEquals(BufferedImage.TYPE_INT_ARGB_PRE, reader.read(0).getType());
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void parallelDecodeMatchesReference() throws IOException {
+        assumeTrue("needs a parallel common pool", ForkJoinPool.getCommonPoolParallelism() > 1);
+
+        for (BufferedImage source : List.of(
+                QOITestImages.photo(WIDTH, HEIGHT, true),
+                QOITestImages.photo(257, 131, false),
+                QOITestImages.sprite(512, 300),
+                QOITestImages.sprite(4100, 600),
+                new BufferedImage(200, 300, BufferedImage.TYPE_INT_ARGB))) {
+            byte[] data = QOITestImages.encode(source);
+
+            // A cached image would hide the decode
+            QOIImageCache.getInstance().clear();
+
+            ImageReader reader = createReader(data, null);
+
+            try {
+                QOIImageReadParam param = new QOIImageReadParam();
+                param.setParallelThreshold(0);
+
+                QOICheckpointTest.assertRegion(QOIUtil.readImage(new ByteArrayInputStream(data)), new Rectangle(0, 0, source.getWidth(), source.getHeight()), reader.read(0, param).getRaster());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void streamReadStopsAtTheEndMarker() throws IOException {
+        byte[] image = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        QOIImage expected = QOIUtil.readImage(new ByteArrayInputStream(image));
+
+        // Another image follows in the stream
+        byte[] data = new byte[image.length + 3];
+        System.arraycopy(image, 0, data, 0, image.length);
+        data[image.length] = 'q';
+
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+
+        ImageReader reader = createReader(input, null);
+
+        try {
+            QOICheckpointTest.assertRegion(expected, new Rectangle(0, 0, WIDTH, HEIGHT), reader.read(0).getRaster());
+
+            assertEquals(3, input.available());
+            assertEquals('q', input.read());
+
+            // Later regions come from the decoded image, the stream is not read again
+            QOIImageReadParam region = new QOIImageReadParam();
+            region.setSourceRegion(new Rectangle(10, HEIGHT - 20, 100, 20));
+
+            QOICheckpointTest.assertRegion(expected, new Rectangle(10, HEIGHT - 20, 100, 20), reader.readRaster(0, region));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void premultipliedStreamImageIsNotReadAgain() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+
+        ImageReader reader = createReader(new ByteArrayInputStream(data), null);
+
+        try {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setPackedPixels(true);
+
+            reader.read(0, param);
+
+            // Unpremultiplying would not give back the colors of translucent pixels
+            QOIImageReadParam region = new QOIImageReadParam();
+            region.setSourceRegion(new Rectangle(0, HEIGHT - 10, WIDTH, 10));
+
+            assertThrows(IIOException.class, () -> reader.readRaster(0, region));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void thumbnailsAreDecodedReduced() throws IOException {
+        BufferedImage source = QOITestImages.photo(WIDTH, HEIGHT, true);
+        byte[] data = QOITestImages.encode(source);
+
+        ThumbnailListener listener = new ThumbnailListener();
+
+        ImageReader reader = createReader(data, listener);
+
+        try {
+            assertTrue(reader.hasThumbnails(0));
+
+            // 300x400 halves down to a single pixel in 9 steps
+            assertEquals(9, reader.getNumThumbnails(0));
+
+            for (int index : new int[]{2, 0, 8}) {
+                int scale = 2 << index;
+
+                BufferedImage thumbnail = reader.readThumbnail(0, index);
+
+                assertEquals(reader.getThumbnailWidth(0, index), thumbnail.getWidth());
+                assertEquals(reader.getThumbnailHeight(0, index), thumbnail.getHeight());
+                assertEquals((WIDTH + scale - 1) / scale, thumbnail.getWidth());
+
+                for (int y = 0; y < thumbnail.getHeight(); y++) {
+                    for (int x = 0; x < thumbnail.getWidth(); x++) {
+                        assertSimilar(average(source, x * scale, y * scale, scale), thumbnail.getRGB(x, y));
+                    }
+                }
+            }
+
+            assertEquals(3, listener.completed);
+            assertEquals(0, listener.imageProgress);
+            assertTrue(listener.thumbnailProgress > 0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @return the alpha weighted average of the block of {@code scale x scale} pixels at {@code x, y}
+     */
+    private static int average(@NotNull BufferedImage image, int x, int y, int scale) {
+        long r = 0, g = 0, b = 0, a = 0;
+        int count = 0;
+
+        for (int j = y; j < Math.min(y + scale, image.getHeight()); j++) {
+            for (int i = x; i < Math.min(x + scale, image.getWidth()); i++) {
+                int argb = image.getRGB(i, j);
+                int alpha = argb >>> 24;
+
+                r += (argb >> 16 & 0xff) * alpha;
+                g += (argb >> 8 & 0xff) * alpha;
+                b += (argb & 0xff) * alpha;
+                a += alpha;
+                count++;
+            }
+        }
+
+        return (int) ((a + count / 2) / count) << 24 |
+                (int) ((r + a / 2) / a) << 16 |
+                (int) ((g + a / 2) / a) << 8 |
+                (int) ((b + a / 2) / a);
+    }
+
+    private static void assertSimilar(int expected, int actual) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            assertEquals(Integer.toHexString(expected) + " " + Integer.toHexString(actual), expected >>> shift & 0xff, actual >>> shift & 0xff, 1);
+        }
+    }
+
+    @Test
+    public void abortReturnsTheRowsDecodedSoFar() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, true));
+        QOIImage expected = QOIUtil.readImage(new ByteArrayInputStream(data));
+
+        Listener listener = new Listener();
+
+        ImageReader reader = createReader(data, listener);
+
+        try {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setParallelThreshold(Long.MAX_VALUE);
+            param.setUpdateRows(16);
+
+            BufferedImage image = reader.read(0, param);
+
+            assertTrue(listener.aborted);
+            assertFalse(listener.completed);
+            assertEquals(1, listener.updates);
+
+            QOICheckpointTest.assertRegion(expected, new Rectangle(0, 0, WIDTH, 16), image.getRaster().createChild(0, 0, WIDTH, 16, 0, 0, null));
+
+            // Nothing below the first band was decoded
+            assertEquals(0, image.getRGB(WIDTH - 1, HEIGHT - 1));
+        } finally {
+            reader.dispose();
+        }
+
+        // Aborted reads are not cached, the next read decodes the whole image
+        reader = createReader(data, null);
+
+        try {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setPackedPixels(false);
+
+            QOICheckpointTest.assertRegion(expected, new Rectangle(0, 0, WIDTH, HEIGHT), reader.read(0, param).getRaster());
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void abortStopsTheTiledRead() throws IOException {
+        byte[] data = QOITestImages.encode(QOITestImages.photo(WIDTH, HEIGHT, false));
+        QOIImage expected = QOIUtil.readImage(new ByteArrayInputStream(data));
+
+        Listener listener = new Listener();
+
+        ImageReader reader = createReader(data, listener);
+
+        try {
+            QOIImageReadParam param = new QOIImageReadParam();
+            param.setTileSize(64, 64);
+            param.setUpdateRows(16);
+
+            RenderedImage image = reader.readAsRenderedImage(0, param);
+
+            assertTrue(listener.aborted);
+            assertFalse(listener.completed);
+
+            // Every tile exists, the first band is decoded
+            assertEquals(5 * 7, image.getNumXTiles() * image.getNumYTiles());
+
+            QOICheckpointTest.assertRegion(expected, new Rectangle(0, 0, WIDTH, 16), image.getData(new Rectangle(0, 0, WIDTH, 16)));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    static @NotNull ImageReader createReader(@NotNull Object input, IIOReadProgressListener listener) {
+        ImageReader reader = new QOIImageReaderSpi().createReaderInstance(null);
+        reader.setInput(input);
+
+        if (listener != null) {
+            reader.addIIOReadProgressListener(listener);
+        }
+
+        return reader;
+    }
+
+    /**
+     * Aborts the read at its first progress update.
+     */
+    private static final class Listener implements IIOReadProgressListener {
+
+        int updates;
+
+        boolean aborted;
+
+        boolean completed;
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            this.updates++;
+
+            source.abort();
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+            this.aborted = true;
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+            this.completed = true;
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+    }
+
+    private static final class ThumbnailListener implements IIOReadProgressListener {
+
+        int completed;
+
+        int imageProgress;
+
+        int thumbnailProgress;
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+            this.completed++;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            this.imageProgress++;
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            this.thumbnailProgress++;
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+
+    }
+
+}
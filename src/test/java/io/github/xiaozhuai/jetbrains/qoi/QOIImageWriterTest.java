@@ -0,0 +1,231 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class QOIImageWriterTest {
+
+    @Test
+    public void serialEncodeMatchesReference() throws IOException {
+        for (BufferedImage image : images()) {
+            assertArrayEquals(QOITestImages.encode(image), write(image, Long.MAX_VALUE, null, null));
+        }
+    }
+
+    @Test
+    public void parallelEncodeMatchesReference() throws IOException {
+        assumeTrue("needs a parallel common pool", ForkJoinPool.getCommonPoolParallelism() > 1);
+
+        QOIBufferPool pool = new QOIBufferPool(8);
+
+        for (BufferedImage image : images()) {
+            byte[] expected = QOITestImages.encode(image);
+
+            assertArrayEquals(expected, write(image, 0, null, null));
+            assertArrayEquals(expected, write(image, 0, pool, null));
+        }
+    }
+
+    @Test
+    public void parallelEncodeReportsProgressPerStripe() throws IOException {
+        assumeTrue("needs a parallel common pool", ForkJoinPool.getCommonPoolParallelism() > 1);
+
+        BufferedImage image = QOITestImages.photo(300, 400, true);
+
+        List<Float> progress = new ArrayList<>();
+
+        assertArrayEquals(QOITestImages.encode(image), write(image, 0, null, new Listener(progress, false)));
+
+        assertTrue(progress.size() > 1);
+        assertEquals(100F, progress.get(progress.size() - 1), 0F);
+
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void abortStopsTheEncode() throws IOException {
+        BufferedImage image = QOITestImages.photo(300, 400, true);
+        byte[] expected = QOITestImages.encode(image);
+
+        for (long threshold : new long[]{Long.MAX_VALUE, 0}) {
+            List<Float> progress = new ArrayList<>();
+            Listener listener = new Listener(progress, true);
+
+            byte[] written = write(image, threshold, null, listener);
+
+            assertTrue(listener.aborted);
+            assertFalse(listener.completed);
+            assertEquals(1, progress.size());
+
+            // Only whole chunks reached the output, and never the end marker
+            assertTrue(written.length < expected.length);
+        }
+    }
+
+    @Test
+    public void subsampledImagesConvertThroughTheColorModel() throws IOException {
+        BufferedImage image = QOITestImages.photo(301, 203, true);
+
+        // Premultiplied and indexed pixels, neither has raw samples to take
+        BufferedImage premultiplied = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+        premultiplied.createGraphics().drawImage(image, 0, 0, null);
+
+        BufferedImage indexed = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED);
+        indexed.createGraphics().drawImage(image, 0, 0, null);
+
+        for (BufferedImage source : new BufferedImage[]{premultiplied, indexed}) {
+            BufferedImage expected = new BufferedImage(101, 68, source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    expected.setRGB(x, y, source.getRGB(x * 3, y * 3));
+                }
+            }
+
+            QOIImageWriteParam param = new QOIImageWriteParam(null);
+            param.setSourceSubsampling(3, 3, 0, 0);
+
+            assertArrayEquals(QOITestImages.encode(expected), write(source, param, null));
+        }
+    }
+
+    @Test
+    public void abortDropsTheBufferedTiles() throws IOException {
+        BufferedImage image = QOITestImages.photo(120, 100, true);
+
+        QOIImageWriteParam param = new QOIImageWriteParam(null);
+        param.setSourceRegion(new Rectangle(0, 0, 120, 100));
+
+        List<Float> progress = new ArrayList<>();
+        Listener listener = new Listener(progress, true);
+
+        // The image is a single tile, encoded into a buffer larger than the whole image
+        byte[] written = write(image, param, listener);
+
+        assertTrue(listener.aborted);
+        assertFalse(listener.completed);
+        assertEquals(0, written.length);
+    }
+
+    /**
+     * Images whose runs and index hits cross stripe boundaries, in every channel count.
+     */
+    private static List<BufferedImage> images() {
+        List<BufferedImage> images = new ArrayList<>();
+
+        images.add(QOITestImages.photo(300, 400, true));
+        images.add(QOITestImages.photo(257, 131, false));
+        images.add(QOITestImages.sprite(512, 300));
+
+        // Wide enough to limit the rows of a stripe
+        images.add(QOITestImages.sprite(4100, 600));
+
+        // One run over the whole image
+        images.add(new BufferedImage(200, 300, BufferedImage.TYPE_INT_ARGB));
+
+        images.add(QOITestImages.photo(1, 1, true));
+        images.add(QOITestImages.photo(1, 97, false));
+
+        return images;
+    }
+
+    private static byte @NotNull [] write(@NotNull BufferedImage image, long threshold, QOIBufferPool pool, Listener listener) throws IOException {
+        QOIImageWriteParam param = new QOIImageWriteParam(null);
+        param.setParallelThreshold(threshold);
+        param.setBufferSize(4096);
+        param.setBufferPool(pool);
+
+        return write(image, param, listener);
+    }
+
+    private static byte @NotNull [] write(@NotNull BufferedImage image, @NotNull QOIImageWriteParam param, Listener listener) throws IOException {
+        ImageWriter writer = new QOIImageWriterSpi().createWriterInstance(null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            writer.setOutput(Channels.newChannel(output));
+
+            if (listener != null) {
+                writer.addIIOWriteProgressListener(listener);
+            }
+
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        return output.toByteArray();
+    }
+
+    private static final class Listener implements IIOWriteProgressListener {
+
+        private final List<Float> progress;
+
+        // Whether to abort at the first progress update
+        private final boolean abort;
+
+        boolean aborted;
+
+        boolean completed;
+
+        Listener(@NotNull List<Float> progress, boolean abort) {
+            this.progress = progress;
+            this.abort = abort;
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            this.progress.add(percentageDone);
+
+            if (this.abort) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void writeAborted(ImageWriter source) {
+            this.aborted = true;
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {
+            this.completed = true;
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+
+    }
+
+}
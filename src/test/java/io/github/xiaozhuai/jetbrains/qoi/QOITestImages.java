@@ -0,0 +1,127 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import me.saharnooby.qoi.QOIColorSpace;
+import me.saharnooby.qoi.QOIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Deterministic test images, and their encoding by the qoi-java port of the reference {@code qoi.h}.
+ */
+final class QOITestImages {
+
+    private QOITestImages() {
+    }
+
+    /**
+     * Smooth gradients with noise, which use every op: diffs, lumas, index hits, full RGB(A) ops and short runs.
+     */
+    static @NotNull BufferedImage photo(int width, int height, boolean alpha) {
+        BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+        Random random = new Random(width * 31L + height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(1, width - 1) + random.nextInt(5) - 2;
+                int g = y * 255 / Math.max(1, height - 1) + (random.nextInt(16) == 0 ? random.nextInt(64) : 0);
+                int b = (x + y) * 127 / Math.max(1, width + height) + (random.nextInt(8) == 0 ? 40 : 0);
+
+                // Opaque at the top, fading out towards the bottom right
+                int a = alpha && y >= height / 2 ? 255 - x * 255 / Math.max(1, width - 1) / 2 : 255;
+
+                image.setRGB(x, y, a << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b));
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Flat areas and a few repeated colors, as in sprites and UI assets, mostly runs and index hits.
+     */
+    static @NotNull BufferedImage sprite(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        int[] palette = {0x00000000, 0xff1e90ff, 0xffffd700, 0x80ff4500, 0xff2e8b57, 0xffffffff};
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, palette[(x / 24 + y / 16 * 3) % palette.length]);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Encodes {@code image} with qoi-java, as interleaved RGB(A) of its sRGB pixels.
+     */
+    static byte @NotNull [] encode(@NotNull BufferedImage image) throws IOException {
+        return encode(image, QOIColorSpace.SRGB);
+    }
+
+    static byte @NotNull [] encode(@NotNull BufferedImage image, @NotNull QOIColorSpace colorSpace) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        int channels = image.getColorModel().hasAlpha() ? 4 : 3;
+
+        QOIUtil.writeImage(QOIUtil.createFromPixelData(getPixelData(image, channels), image.getWidth(), image.getHeight(), channels, colorSpace), output);
+
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the pixels of {@code image} as interleaved RGB(A) bytes, not premultiplied
+     */
+    static byte @NotNull [] getPixelData(@NotNull BufferedImage image, int channels) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        byte[] data = new byte[width * height * channels];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i += channels) {
+                int argb = image.getRGB(x, y);
+
+                data[i] = (byte) (argb >>> 16);
+                data[i + 1] = (byte) (argb >>> 8);
+                data[i + 2] = (byte) argb;
+
+                if (channels == 4) {
+                    data[i + 3] = (byte) (argb >>> 24);
+                }
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Compares the non-premultiplied sRGB pixels of two images.
+     */
+    static void assertSamePixels(@NotNull BufferedImage expected, @NotNull BufferedImage actual) {
+        assertEquals("width", expected.getWidth(), actual.getWidth());
+        assertEquals("height", expected.getHeight(), actual.getHeight());
+
+        int width = expected.getWidth();
+
+        for (int y = 0; y < expected.getHeight(); y++) {
+            int[] row = expected.getRGB(0, y, width, 1, null, 0, width);
+
+            assertArrayEquals("row " + y, row, actual.getRGB(0, y, width, 1, null, 0, width));
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+}
@@ -0,0 +1,111 @@
+package io.github.xiaozhuai.jetbrains.qoi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class QOIThumbnailCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesSurviveARestart() throws IOException {
+        Path directory = this.folder.getRoot().toPath().resolve("thumbnails");
+        BufferedImage thumbnail = QOITestImages.photo(64, 48, false);
+
+        QOIThumbnailCache cache = new QOIThumbnailCache(directory, Long.MAX_VALUE);
+
+        assertNull(cache.get("/a.qoi", 100, 1, 64));
+
+        cache.put("/a.qoi", 100, 1, 64, thumbnail);
+
+        QOITestImages.assertSamePixels(thumbnail, cache.get("/a.qoi", 100, 1, 64));
+
+        // Another version or size of the file misses
+        assertNull(cache.get("/a.qoi", 100, 2, 64));
+        assertNull(cache.get("/a.qoi", 100, 1, 32));
+
+        QOITestImages.assertSamePixels(thumbnail, new QOIThumbnailCache(directory, Long.MAX_VALUE).get("/a.qoi", 100, 1, 64));
+    }
+
+    @Test
+    public void newVersionsReplaceOldOnes() throws IOException {
+        Path directory = this.folder.getRoot().toPath();
+
+        QOIThumbnailCache cache = new QOIThumbnailCache(directory, Long.MAX_VALUE);
+
+        cache.put("/a.qoi", 100, 1, 64, QOITestImages.photo(64, 48, true));
+        cache.put("/a.qoi", 100, 2, 64, QOITestImages.photo(64, 48, false));
+        cache.put("/b.qoi", 100, 1, 64, QOITestImages.photo(64, 48, false));
+
+        assertNull(cache.get("/a.qoi", 100, 1, 64));
+        assertEquals(2, count(directory));
+
+        cache.invalidate("/a.qoi");
+
+        assertNull(cache.get("/a.qoi", 100, 2, 64));
+        assertNotNull(cache.get("/b.qoi", 100, 1, 64));
+        assertEquals(1, count(directory));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        Path directory = this.folder.getRoot().toPath();
+
+        QOIThumbnailCache cache = new QOIThumbnailCache(directory, Long.MAX_VALUE);
+
+        cache.put("/0.qoi", 100, 1, 64, QOITestImages.photo(64, 64, false));
+
+        long size;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            size = Files.size(files.findFirst().orElseThrow());
+        }
+
+        // Room for three entries of the same size
+        cache = new QOIThumbnailCache(directory, size * 3);
+
+        cache.put("/1.qoi", 100, 1, 64, QOITestImages.photo(64, 64, false));
+        cache.put("/2.qoi", 100, 1, 64, QOITestImages.photo(64, 64, false));
+
+        assertNotNull(cache.get("/0.qoi", 100, 1, 64));
+
+        cache.put("/3.qoi", 100, 1, 64, QOITestImages.photo(64, 64, false));
+
+        assertEquals(3, count(directory));
+        assertNull(cache.get("/1.qoi", 100, 1, 64));
+        assertNotNull(cache.get("/0.qoi", 100, 1, 64));
+    }
+
+    @Test
+    public void damagedEntriesAreDropped() throws IOException {
+        Path directory = this.folder.getRoot().toPath();
+
+        QOIThumbnailCache cache = new QOIThumbnailCache(directory, Long.MAX_VALUE);
+
+        cache.put("/a.qoi", 100, 1, 64, QOITestImages.photo(64, 48, true));
+
+        try (Stream<Path> files = Files.list(directory)) {
+            Files.write(files.findFirst().orElseThrow(), new byte[]{1, 2, 3});
+        }
+
+        assertNull(cache.get("/a.qoi", 100, 1, 64));
+        assertEquals(0, count(directory));
+    }
+
+    private static long count(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+}